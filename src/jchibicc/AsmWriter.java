@@ -0,0 +1,104 @@
+package jchibicc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Assembly output buffer.
+//
+// Mnemonics, registers, labels and integer operands are appended as
+// ASCII bytes straight into a growable byte array: no format string is
+// parsed and no operand is boxed. The finished buffer is written to a
+// channel in large chunks.
+//
+// Instructions are built as Code and written here by Code.write_to;
+// this class only has the text primitives, labels and directives.
+class AsmWriter {
+	private byte[] buf = new byte[1 << 12];
+	private int len;
+
+	private void reserve(int n) {
+		if (len + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+	}
+
+	// Appends an ASCII string.
+	AsmWriter str(String s) {
+		int n = s.length();
+		reserve(n);
+		for (int i = 0; i < n; i++)
+			buf[len++] = (byte) s.charAt(i);
+		return this;
+	}
+
+	AsmWriter ch(char c) {
+		reserve(1);
+		buf[len++] = (byte) c;
+		return this;
+	}
+
+	// Appends a decimal integer.
+	AsmWriter num(long n) {
+		reserve(20);
+		if (n < 0) {
+			buf[len++] = '-';
+		} else {
+			n = -n; // work on the negative side so that MIN_VALUE fits
+		}
+		int start = len;
+		do {
+			buf[len++] = (byte) ('0' - n % 10);
+			n /= 10;
+		} while (n != 0);
+
+		// Digits were produced least significant first.
+		for (int i = start, j = len - 1; i < j; i++, j--) {
+			byte t = buf[i];
+			buf[i] = buf[j];
+			buf[j] = t;
+		}
+		return this;
+	}
+
+	// "name:"
+	void label(String name) {
+		str(name).str(":\n");
+	}
+
+	// "  .directive"
+	void directive(String d) {
+		str("  ").str(d).ch('\n');
+	}
+
+	// "  .directive arg"
+	void directive(String d, String arg) {
+		str("  ").str(d).ch(' ').str(arg).ch('\n');
+	}
+
+	// "  .directive n"
+	void directive(String d, long n) {
+		str("  ").str(d).ch(' ').num(n).ch('\n');
+	}
+
+	void append(AsmWriter w) {
+		reserve(w.len);
+		System.arraycopy(w.buf, 0, buf, len, w.len);
+		len += w.len;
+	}
+
+	int size() {
+		return len;
+	}
+
+	void write_to(WritableByteChannel ch) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+		while (bb.hasRemaining())
+			ch.write(bb);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, 0, len, StandardCharsets.US_ASCII);
+	}
+}
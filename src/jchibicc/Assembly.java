@@ -1,53 +1,305 @@
 package jchibicc;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
 // Code Generator
+//
+// codegen() generates a translation unit. Each function is generated
+// by an Assembly of its own, which holds the state of that (temporaries,
+// label counter and output), so functions and translation units can be
+// generated concurrently, see emit_text(). A function's code is
+// collected as a Code list and goes through the Peephole optimizer
+// before it is written out.
+//
+// Expressions are evaluated into %rax. An operand that has to wait
+// while the other one is computed is saved as a temporary with push()
+// and taken back with pop(). Temporaries live in the caller-saved
+// registers of `tmpreg`, and only go to the machine stack when those
+// run out (or always, with -fno-regalloc). Operands are evaluated in
+// Sethi-Ullman order, the one needing more temporaries first, which
+// keeps the number of temporaries live at any time to a minimum.
 class Assembly {
 
-	private static void printf(String s, Object... o) {
-		S.printf(s, o);
+	private final Code out;
+	private final Options opt;
+
+	Assembly(Code out, Options opt) {
+		this.out = out;
+		this.opt = opt;
 	}
-	
-	private static void push() {
-		printf("  push %%rax\n");
-		depth++;
+
+	// Registers for temporaries. They are ordered so that the
+	// arguments of a call, which are temporaries 0 to 5, can be moved
+	// to argreg64 from the last to the first without overwriting one
+	// that has not been moved yet.
+	private static final String tmpreg[] = {"%r10", "%r11", "%rsi", "%rcx", "%r8", "%r9"};
+
+	private int depth; // Number of live temporaries
+	private int base;  // Temporary that uses tmpreg[0]
+	private int stack; // Number of 8-byte slots pushed on the machine stack
+
+	// Saves %rax as a new temporary.
+	private void push() {
+		int r = depth++ - base;
+		if (!opt.stack_machine && r < tmpreg.length) {
+			out.ins("mov", "%rax", tmpreg[r]);
+			return;
+		}
+		out.ins("push", "%rax");
+		stack++;
 	}
 
-	private static void pop(String s) {
-		printf("  pop %s\n", s);
-		depth--;
+	// Takes back the last temporary and returns the register that holds
+	// it. A temporary that was spilled is popped into `reg`.
+	private String pop(String reg) {
+		int r = --depth - base;
+		if (!opt.stack_machine && r < tmpreg.length) return tmpreg[r];
+		out.ins("pop", reg);
+		stack--;
+		return reg;
+	}
+
+	// Like pop(), but always into `reg`.
+	private void pop_to(String reg) {
+		String r = pop(reg);
+		if (!r.equals(reg)) out.ins("mov", r, reg);
+	}
+
+	// Sethi-Ullman numbering: sets node.regs to the number of
+	// temporaries needed to evaluate each expression.
+	private static void label(Node node) {
+		if (node == null) return;
+
+		label(node.lhs);
+		label(node.rhs);
+		label(node.cond);
+		label(node.then);
+		label(node.els);
+		label(node.init);
+		label(node.inc);
+		for (Node n = node.body; n != null; n = n.next)
+			label(n);
+		for (Node n = node.args; n != null; n = n.next)
+			label(n);
+
+		switch (node.kind) {
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case EQ:
+		case NE:
+		case LT:
+		case LE:
+			node.regs = su(node.lhs.regs, node.rhs.regs);
+			return;
+		case ASSIGN:
+			node.regs = su(addr_regs(node.lhs), node.rhs.regs);
+			return;
+		case NEG:
+		case DEREF:
+			node.regs = node.lhs.regs;
+			return;
+		case ADDR:
+			node.regs = addr_regs(node.lhs);
+			return;
+		case FUNCALL:
+		case INLINE:
+			// A call clobbers every temporary register, so it should
+			// be evaluated before anything that would be live across it.
+			// An inlined one is a sequence of statements that is best
+			// not nested in a larger expression's temporaries either.
+			node.regs = tmpreg.length;
+			return;
+		default:
+			node.regs = 0;
+			return;
+		}
+	}
+
+	// Evaluating one operand and holding it while the other one is
+	// evaluated takes one temporary more than the second operand does.
+	private static int su(int a, int b) {
+		return a == b ? a + 1 : Math.max(a, b);
+	}
+
+	private static int addr_regs(Node node) {
+		return node.kind == Node.Kind.DEREF ? node.lhs.regs : 0;
+	}
+
+	// Returns true if the right operand of `node` should be evaluated
+	// first, which is the order the stack machine always uses.
+	private boolean rhs_first(int lhs_regs, Node rhs) {
+		return opt.stack_machine || rhs.regs >= lhs_regs;
 	}
 	
 	// Round up `n` to the nearest multiple of `align`. For instance,
 	// align_to(5, 8) returns 8 and align_to(11, 8) returns 16.
-	private static int align_to(int n, int align) {
+	static int align_to(int n, int align) {
 	  return (n + align - 1) / align * align;
 	}	
 
 	// Compute the absolute address of a given node.
 	// It's an error if a given node does not reside in memory.
-	private static void gen_addr(Node node) {
+	private void gen_addr(Node node) {
 		switch (node.kind) {
 		case VAR:
-			if (node.var.is_local) {
-				// Local variable
-				printf("  lea %d(%%rbp), %%rax\n", node.var.offset);
-			} else {
-				// Global variable
-				printf("  lea %s(%%rip), %%rax\n", node.var.name);
-			}
+			gen_var_addr(node.var, "%rax");
 			return;
 		case DEREF:
-			gen_expr(node.lhs);
+			lea(gen_mem(node.lhs));
 			return;
 		default:
 			break;
 		}
 
-		S.error("%s not an lvalue", node.token.toString());
+		S.error_tok(node.token, "not an lvalue");
 	}
 	
-	// Load a value from where %rax is pointing to.
-	private static void load(Type ty) {
+	private void gen_var_addr(Obj var, String reg) {
+		if (var.is_local) {
+			// Local variable
+			out.ins_load("lea", var.offset, "%rbp", reg);
+		} else {
+			// Global variable
+			out.ins_rip("lea", var.name, reg);
+		}
+	}
+
+	// Instruction selection for memory accesses.
+	//
+	// An address is matched against the x86 addressing mode
+	// disp(base,idx,scale), taking as much of the tree as the mode can
+	// cover (maximal munch). Constant offsets go to the displacement,
+	// a multiplication by 1, 2, 4 or 8 becomes the scaled index, and a
+	// local array or a variable kept in a register is used as the base
+	// or index as it is. Only what is left is evaluated, so `a[i]`
+	// is a single load instead of an imul, an add and a load.
+
+	// Returns the memory operand that the lvalue `node` designates.
+	private Code.Opd gen_lvalue(Node node) {
+		switch (node.kind) {
+		case VAR:
+			if (node.var.is_local) return Code.Opd.mem(node.var.offset, "%rbp");
+			return Code.Opd.rip(node.var.name);
+		case DEREF:
+			return gen_mem(node.lhs);
+		default:
+			break;
+		}
+
+		S.error_tok(node.token, "not an lvalue");
+		return null;
+	}
+
+	// Evaluates the parts of the address `node` that are not folded
+	// into the addressing mode, and returns the memory operand.
+	private Code.Opd gen_mem(Node node) {
+		long disp = 0;
+		Node base = node;
+		Node idx = null;
+		int scale = 1;
+
+		// ptr + num, ptr - num and ptr + idx * scale
+		for (;;) {
+			if (base.kind == Node.Kind.ADD && base.lhs.ty.base != null) {
+				Node rhs = base.rhs;
+				if (rhs.kind == Node.Kind.NUM) {
+					if (!fits_disp(disp + rhs.val)) break;
+					disp += rhs.val;
+					base = base.lhs;
+					continue;
+				}
+				if (idx != null) break;
+				idx = rhs;
+				if (rhs.kind == Node.Kind.MUL && rhs.rhs.kind == Node.Kind.NUM && is_scale(rhs.rhs.val)) {
+					idx = rhs.lhs;
+					scale = (int) rhs.rhs.val;
+				}
+				base = base.lhs;
+				continue;
+			}
+			if (base.kind == Node.Kind.SUB && base.lhs.ty.base != null && base.rhs.kind == Node.Kind.NUM
+					&& fits_disp(disp - base.rhs.val)) {
+				disp -= base.rhs.val;
+				base = base.lhs;
+				continue;
+			}
+			break;
+		}
+
+		// (idx + num) * scale
+		while (idx != null && (idx.kind == Node.Kind.ADD || idx.kind == Node.Kind.SUB)
+				&& idx.rhs.kind == Node.Kind.NUM && idx.rhs.val == (int) idx.rhs.val) {
+			long d = idx.rhs.val * scale;
+			if (idx.kind == Node.Kind.SUB) d = -d;
+			if (!fits_disp(disp + d)) break;
+			disp += d;
+			idx = idx.lhs;
+		}
+
+		String b = null;
+		String x = null;
+		if (base.kind == Node.Kind.VAR && base.var.is_local && base.ty.kind == Type.Kind.ARRAY
+				&& fits_disp(disp + base.var.offset)) {
+			disp += base.var.offset;
+			b = "%rbp";
+			base = null;
+		} else if (base.kind == Node.Kind.VAR && base.var.reg != null) {
+			b = base.var.reg;
+			base = null;
+		}
+		if (idx != null && idx.kind == Node.Kind.VAR && idx.var.reg != null) {
+			x = idx.var.reg;
+			idx = null;
+		}
+
+		if (base != null && idx != null) {
+			if (rhs_first(base.regs, idx)) {
+				gen_expr(idx);
+				push();
+				gen_expr(base);
+				b = "%rax";
+				x = pop("%rdx");
+			} else {
+				gen_expr(base);
+				push();
+				gen_expr(idx);
+				x = "%rax";
+				b = pop("%rdx");
+			}
+		} else if (base != null) {
+			gen_expr(base);
+			b = "%rax";
+		} else if (idx != null) {
+			gen_expr(idx);
+			x = "%rax";
+		}
+
+		if (x == null) return Code.Opd.mem(disp, b);
+		return Code.Opd.mem(disp, b, x, scale);
+	}
+
+	private static boolean fits_disp(long disp) {
+		return disp == (int) disp;
+	}
+
+	private static boolean is_scale(long n) {
+		return n == 1 || n == 2 || n == 4 || n == 8;
+	}
+
+	// Load the address of `m` to %rax.
+	private void lea(Code.Opd m) {
+		if (m.kind == Code.Opd.MEM && m.val == 0 && m.idx == null && m.reg.equals("%rax")) return;
+		out.ins("lea", m, Code.Opd.reg("%rax"));
+	}
+
+	// Load a value from `m` to %rax.
+	private void load(Type ty, Code.Opd m) {
 	  if (ty.kind == Type.Kind.ARRAY) {
 	    // If it is an array, do not attempt to load a value to the
 	    // register because in general we can't load an entire array to a
@@ -55,230 +307,718 @@ class Assembly {
 	    // becomes not the array itself but the address of the array.
 	    // This is where "array is automatically converted to a pointer to
 	    // the first element of the array in C" occurs.
+	    lea(m);
 	    return;
 	}
 
 	if (ty.size == 1) 
-		printf("  movsbq (%%rax), %%rax\n");
+		out.ins("movsbq", m, Code.Opd.reg("%rax"));
 	else 
-		printf("  mov (%%rax), %%rax\n");
+		out.ins("mov", m, Code.Opd.reg("%rax"));
 }
 
-	// Store %rax to an address that the stack top is pointing to.
-	private static void store(Type ty) {
-	  pop("%rdi");
+	// Store %rax to a variable that lives in `reg`. Like a char in
+	// memory, a char in a register holds its value sign-extended.
+	private void store_reg(Type ty, String reg) {
+	  if (ty.size == 1)
+	    out.ins("movsbq", "%al", reg);
+	  else
+	    out.ins("mov", "%rax", reg);
+	}
+
+	// Store `reg` to `m`.
+	private void store(Type ty, String reg, Code.Opd m) {
 	  if (ty.size == 1)
-		    printf("  mov %%al, (%%rdi)\n");
+		    out.ins("mov", Code.Opd.reg(reg8(reg)), m);
 		  else
-		    printf("  mov %%rax, (%%rdi)\n");
+		    out.ins("mov", Code.Opd.reg(reg), m);
 	}	
+
+	// The low byte of a 64-bit register.
+	private static String reg8(String reg) {
+		switch (reg) {
+		case "%rax": return "%al";
+		case "%rbx": return "%bl";
+		case "%rcx": return "%cl";
+		case "%rdx": return "%dl";
+		case "%rsi": return "%sil";
+		case "%rdi": return "%dil";
+		default: return reg + "b"; // %r8 to %r15
+		}
+	}
 	
-	private static void gen_expr(Node node) {
+	private void gen_expr(Node node) {
 		switch (node.kind) {
 		case NUM:
-			printf("  mov $%d, %%rax\n", node.val);
+			out.ins_imm("mov", node.val, "%rax");
 			return;
 		case NEG:
 			gen_expr(node.lhs);
-			printf("  neg %%rax\n");
+			out.ins("neg", "%rax");
 			return;
 		case VAR:
-			gen_addr(node);
-			load(node.ty);
+			if (node.var.reg != null) {
+				out.ins("mov", node.var.reg, "%rax");
+				return;
+			}
+			load(node.ty, gen_lvalue(node));
 			return;
 		case DEREF:
-			gen_expr(node.lhs);
-		    load(node.ty);
+			load(node.ty, gen_lvalue(node));
 			return;
 		case ADDR:
 			gen_addr(node.lhs);
 			return;
 		case ASSIGN:
-			gen_addr(node.lhs);
-			push();
+			if (node.lhs.kind == Node.Kind.VAR && node.lhs.var.reg != null) {
+				gen_expr(node.rhs);
+				store_reg(node.ty, node.lhs.var.reg);
+				return;
+			}
+			if (node.lhs.kind == Node.Kind.VAR) {
+				// The address of a variable needs no temporary.
+				gen_expr(node.rhs);
+				store(node.ty, "%rax", gen_lvalue(node.lhs));
+				return;
+			}
+			// The address is computed last, so the registers of its
+			// addressing mode are still intact at the store.
 			gen_expr(node.rhs);
-			store(node.ty);
+			push();
+			Code.Opd m = gen_lvalue(node.lhs);
+			store(node.ty, pop("%rdi"), m);
 			return;
 		case FUNCALL:
-		    int nargs = 0;
-		    for (Node arg = node.args; arg != null; arg = arg.next) {
-		      gen_expr(arg);
-		      push();
-		      nargs++;
-		    }
-
-		    for (int i = nargs - 1; i >= 0; i--)
-		      pop(argreg64[i]);
-
-			printf("  mov $0, %%rax\n");
-			printf("  call %s\n", node.funcname);
+			gen_funcall(node);
 			return;
+		case INLINE: {
+			// A return in the body leaves its value in %rax and jumps
+			// to the end.
+			int c = count();
+			int outer = inline_end;
+			boolean outer_tail = inline_tail;
+			inline_end = c;
+			inline_tail = returned;
+			returned = false;
+			for (Node n = node.body; n != null; n = n.next)
+				gen_stmt(n);
+			inline_end = outer;
+			inline_tail = outer_tail;
+			out.label("inline", current_fn.name, c);
+			return;
+		}
 		default:
 			break;
 		}
 
-		gen_expr(node.rhs);
-		push();
-		gen_expr(node.lhs);
-		pop("%rdi");
+		if ((node.kind == Node.Kind.MUL || node.kind == Node.Kind.DIV) && gen_by_const(node))
+			return;
 
+		String rhs = gen_operands(node);
 		switch (node.kind) {
 		case ADD:
-			printf("  add %%rdi, %%rax\n");
+			out.ins("add", rhs, "%rax");
 			return;
 		case SUB:
-			printf("  sub %%rdi, %%rax\n");
+			out.ins("sub", rhs, "%rax");
 			return;
 		case MUL:
-			printf("  imul %%rdi, %%rax\n");
+			out.ins("imul", rhs, "%rax");
 			return;
 		case DIV:
-			printf("  cqo\n");
-			printf("  idiv %%rdi\n");
+			out.ins("cqo");
+			out.ins("idiv", rhs);
 			return;
 		  case EQ:
 		  case NE:
 		  case LT:
 		  case LE:
-		    printf("  cmp %%rdi, %%rax\n");
+		    out.ins("cmp", rhs, "%rax");
 
 		    if (node.kind == Node.Kind.EQ)
-		      printf("  sete %%al\n");
+		      out.ins("sete", "%al");
 		    else if (node.kind == Node.Kind.NE)
-		      printf("  setne %%al\n");
+		      out.ins("setne", "%al");
 		    else if (node.kind == Node.Kind.LT)
-		      printf("  setl %%al\n");
+		      out.ins(swapped ? "setg" : "setl", "%al");
 		    else if (node.kind == Node.Kind.LE)
-		      printf("  setle %%al\n");
+		      out.ins(swapped ? "setge" : "setle", "%al");
 
-		    printf("  movzb %%al, %%rax\n");
+		    out.ins("movzb", "%al", "%rax");
 		    return;
 		default:
 			break;
 		}
 
-		S.error("%s invalid expression", node.token.toString());
+		S.error_tok(node.token, "invalid expression");
+	}
+
+	// Strength reduction of multiplication and division by constants.
+	//
+	// A multiplication by c = odd * 2^k, with odd 1, 3, 5 or 9, is a
+	// lea and a shift. Signed division by 2^k is an arithmetic shift,
+	// after adding 2^k-1 to a negative dividend so that the quotient
+	// is truncated toward zero like with idiv. Division by any other
+	// constant d multiplies by a "magic number" M of about 2^(64+s)/d
+	// and shifts the high half of the product right by s (Hacker's
+	// Delight, chapter 10).
+	//
+	// Returns false if neither operand is a suitable constant.
+	private boolean gen_by_const(Node node) {
+		if (node.kind == Node.Kind.MUL) {
+			Node x = node.lhs;
+			Node c = node.rhs;
+			if (x.kind == Node.Kind.NUM) {
+				x = node.rhs;
+				c = node.lhs;
+			}
+			if (c.kind != Node.Kind.NUM) return false;
+			gen_expr(x);
+			mul_const(c.val);
+			return true;
+		}
+
+		// Division by zero is left to idiv.
+		if (node.rhs.kind != Node.Kind.NUM || node.rhs.val == 0) return false;
+		gen_expr(node.lhs);
+		div_const(node.rhs.val);
+		return true;
+	}
+
+	// %rax *= c
+	private void mul_const(long c) {
+		if (c == 0) {
+			out.ins_imm("mov", 0, "%rax");
+			return;
+		}
+
+		// |c| as an unsigned number, which is right for MIN_VALUE too.
+		long m = c < 0 ? -c : c;
+		int k = Long.numberOfTrailingZeros(m);
+		long odd = m >>> k;
+		if (odd != 1 && odd != 3 && odd != 5 && odd != 9) {
+			if (c == (int) c) {
+				out.ins_imm("imul", c, "%rax");
+			} else {
+				out.ins_imm("mov", c, "%rdi");
+				out.ins("imul", "%rdi", "%rax");
+			}
+			return;
+		}
+
+		if (odd != 1)
+			out.ins("lea", Code.Opd.mem(0, "%rax", "%rax", (int) odd - 1), Code.Opd.reg("%rax"));
+		if (k > 0) out.ins_imm("shl", k, "%rax");
+		if (c < 0) out.ins("neg", "%rax");
+	}
+
+	// %rax /= d, truncating toward zero. d is not 0.
+	private void div_const(long d) {
+		if (d == 1) return;
+		if (d == -1) {
+			out.ins("neg", "%rax");
+			return;
+		}
+
+		long ad = d < 0 ? -d : d;
+		if (Long.bitCount(ad) == 1) {
+			int k = Long.numberOfTrailingZeros(ad);
+			out.ins("mov", "%rax", "%rdx");
+			out.ins_imm("sar", 63, "%rdx");
+			out.ins_imm("shr", 64 - k, "%rdx");
+			out.ins("add", "%rdx", "%rax");
+			out.ins_imm("sar", k, "%rax");
+			if (d < 0) out.ins("neg", "%rax");
+			return;
+		}
+
+		long[] ms = magic(d);
+		long M = ms[0];
+		int s = (int) ms[1];
+		out.ins("mov", "%rax", "%rdi");
+		out.ins_imm("mov", M, "%rax");
+		out.ins("imul", "%rdi");
+		if (d > 0 && M < 0) out.ins("add", "%rdi", "%rdx");
+		if (d < 0 && M > 0) out.ins("sub", "%rdi", "%rdx");
+		if (s > 0) out.ins_imm("sar", s, "%rdx");
+		// Add 1 to a negative quotient.
+		out.ins("mov", "%rdx", "%rax");
+		out.ins_imm("shr", 63, "%rax");
+		out.ins("add", "%rdx", "%rax");
+	}
+
+	// Returns the magic number and the shift count for signed division
+	// by d, where |d| >= 3 and is not a power of two. Computed with
+	// unsigned arithmetic as in Hacker's Delight, figure 10-1.
+	private static long[] magic(long d) {
+		final long two63 = Long.MIN_VALUE;
+		long ad = Math.abs(d);
+		long t = two63 + (d >>> 63);
+		long anc = t - 1 - Long.remainderUnsigned(t, ad); // |nc|
+		int p = 63;
+		long q1 = Long.divideUnsigned(two63, anc); // 2^p / |nc|
+		long r1 = two63 - q1 * anc;                 // 2^p % |nc|
+		long q2 = Long.divideUnsigned(two63, ad);  // 2^p / |d|
+		long r2 = two63 - q2 * ad;                  // 2^p % |d|
+		long delta;
+		do {
+			p++;
+			q1 = 2 * q1;
+			r1 = 2 * r1;
+			if (Long.compareUnsigned(r1, anc) >= 0) {
+				q1++;
+				r1 -= anc;
+			}
+			q2 = 2 * q2;
+			r2 = 2 * r2;
+			if (Long.compareUnsigned(r2, ad) >= 0) {
+				q2++;
+				r2 -= ad;
+			}
+			delta = ad - r2;
+		} while (Long.compareUnsigned(q1, delta) < 0 || (q1 == delta && r1 == 0));
+
+		long m = q2 + 1;
+		return new long[] {d < 0 ? -m : m, p - 64};
+	}
+
+	// Set by gen_operands(): %rax holds the right operand of a
+	// commutative or comparison operator and the register returned
+	// holds the left one.
+	private boolean swapped;
+
+	// Evaluates the operands of a binary operator in Sethi-Ullman
+	// order. The left operand ends up in %rax, and the register holding
+	// the right one is returned, unless the operator allows them to be
+	// the other way around, see `swapped`.
+	private String gen_operands(Node node) {
+		String rhs = "%rdi";
+		boolean swap = false;
+		if (rhs_first(node.lhs.regs, node.rhs)) {
+			gen_expr(node.rhs);
+			push();
+			gen_expr(node.lhs);
+			rhs = pop("%rdi");
+		} else {
+			gen_expr(node.lhs);
+			push();
+			gen_expr(node.rhs);
+			switch (node.kind) {
+			case ADD:
+			case MUL:
+			case EQ:
+			case NE:
+			case LT:
+			case LE:
+				rhs = pop("%rdi");
+				swap = true;
+				break;
+			default:
+				out.ins("mov", "%rax", "%rdi");
+				pop_to("%rax");
+				break;
+			}
+		}
+		swapped = swap;
+		return rhs;
+	}
+
+	private void gen_funcall(Node node) {
+		// The temporaries of the enclosing expression that are in
+		// registers do not survive the call: save them on the stack, and
+		// start the arguments over at tmpreg[0].
+		int live = opt.stack_machine ? 0 : Math.min(depth - base, tmpreg.length);
+		for (int i = 0; i < live; i++) {
+			out.ins("push", tmpreg[i]);
+			stack++;
+		}
+		int outer = base;
+		base = depth;
+
+	    int nargs = 0;
+	    for (Node arg = node.args; arg != null; arg = arg.next) {
+	      gen_expr(arg);
+	      push();
+	      nargs++;
+	    }
+
+	    for (int i = nargs - 1; i >= 0; i--)
+	      pop_to(argreg64[i]);
+		base = outer;
+
+		// The ABI wants %rsp to be 16-byte aligned at the call.
+		boolean pad = stack % 2 == 1;
+		if (pad) out.ins_imm("sub", 8, "%rsp");
+		out.ins_imm("mov", 0, "%rax");
+		out.ins("call", node.funcname);
+		if (pad) out.ins_imm("add", 8, "%rsp");
+
+		for (int i = live - 1; i >= 0; i--) {
+			out.ins("pop", tmpreg[i]);
+			stack--;
+		}
 	}
 	
-	private static void gen_stmt(Node node) {
+	// return f(...): the caller's frame is torn down before jumping to
+	// f, so that f returns straight to our caller and a recursion in
+	// tail position runs in constant stack. The arguments are all
+	// evaluated before anything is torn down, while the caller's own
+	// parameters are still in their registers and slots, and only then
+	// moved to the argument registers.
+	private void gen_tail_call(Node node) {
+		int nargs = 0;
+		for (Node arg = node.args; arg != null; arg = arg.next) {
+			gen_expr(arg);
+			push();
+			nargs++;
+		}
+
+		for (int i = nargs - 1; i >= 0; i--)
+			pop_to(argreg64[i]);
+
+		gen_leave(current_fn);
+		out.ins_imm("mov", 0, "%rax");
+		out.ins("jmp", node.funcname);
+	}
+
+	// Jumps to label `kind` number `c` if `cond` is `when`. A
+	// comparison jumps on the flags of its cmp instead of materializing
+	// a 0 or 1 and testing that.
+	private void gen_branch(Node cond, boolean when, String kind, int c) {
+		switch (cond.kind) {
+		case EQ:
+		case NE:
+		case LT:
+		case LE:
+			break;
+		default:
+			gen_expr(cond);
+			out.ins_imm("cmp", 0, "%rax");
+			out.ins_jump(when ? "jne" : "je", kind, current_fn.name, c);
+			return;
+		}
+
+		String rhs = gen_operands(cond);
+		out.ins("cmp", rhs, "%rax");
+		String jcc;
+		if (cond.kind == Node.Kind.EQ)
+			jcc = when ? "je" : "jne";
+		else if (cond.kind == Node.Kind.NE)
+			jcc = when ? "jne" : "je";
+		else if (cond.kind == Node.Kind.LT)
+			jcc = when ? (swapped ? "jg" : "jl") : (swapped ? "jle" : "jge");
+		else
+			jcc = when ? (swapped ? "jge" : "jle") : (swapped ? "jl" : "jg");
+		out.ins_jump(jcc, kind, current_fn.name, c);
+	}
+
+	private void gen_stmt(Node node) {
 		switch (node.kind) {
 		case IF: {
 			int c = count();
-			gen_expr(node.cond);
-			printf("  cmp $0, %%rax\n");
-			printf("  je  .L.else.%d\n", c);
+			gen_branch(node.cond, false, "else", c);
 			gen_stmt(node.then);
-			printf("  jmp .L.end.%d\n", c);
-			printf(".L.else.%d:\n", c);
+			out.ins_jump("jmp", "end", current_fn.name, c);
+			out.label("else", current_fn.name, c);
 			if (node.els != null) gen_stmt(node.els);
-			printf(".L.end.%d:\n", c);
+			out.label("end", current_fn.name, c);
 			return;
 		}
 		case FOR: {
 			int c = count();
 			if (node.init != null) gen_stmt(node.init);
-			printf(".L.begin.%d:\n", c);
-			if (node.cond != null) {
-				gen_expr(node.cond);
-				printf("  cmp $0, %%rax\n");
-				printf("  je  .L.end.%d\n", c);
-			}
-			gen_stmt(node.then);
+			// The loop is rotated: the condition is tested once on entry
+			// and then at the bottom, so that an iteration takes a single
+			// branch.
+			if (node.cond != null) gen_branch(node.cond, false, "end", c);
+			out.label("begin", current_fn.name, c);
+			if (node.lanes != 0) gen_vector(node.then);
+			else gen_stmt(node.then);
 			if (node.inc != null) gen_expr(node.inc);
-			printf("  jmp .L.begin.%d\n", c);
-			printf(".L.end.%d:\n", c);
+			if (node.cond != null) gen_branch(node.cond, true, "begin", c);
+			else out.ins_jump("jmp", "begin", current_fn.name, c);
+			out.label("end", current_fn.name, c);
 			return;
 		}
 		case BLOCK:
 			for (Node n = node.body; n != null; n = n.next)
 				gen_stmt(n);
 			return;
-		case RETURN:
+		case RETURN: {
+			// A return in an inlined body whose value the function
+			// returns is a return from the function too.
+			boolean tail = inline_end == 0 || inline_tail;
+			if (node.lhs.kind == Node.Kind.FUNCALL && tail && tail_calls) {
+				gen_tail_call(node.lhs);
+				return;
+			}
+			returned = node.lhs.kind == Node.Kind.INLINE && tail;
 			gen_expr(node.lhs);
-			printf("  jmp .L.return.%s\n", current_fn.name);
+			if (inline_end != 0) out.ins_jump("jmp", "inline", current_fn.name, inline_end);
+			else out.ins("jmp", return_label);
 			return;
+		}
 		case EXPR_STMT:
 			gen_expr(node.lhs);
 			return;
 		default:
 			break;
 		}
-		S.error("%s invalid statement", node.token.toString());
+		S.error_tok(node.token, "invalid statement");
 	}
 	
-	private static int depth;
-	private static String argreg8[] = {"%dil", "%sil", "%dl", "%cl", "%r8b", "%r9b"};
-	private static String argreg64[] = {"%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"};	
-	private static Obj current_fn;
+	// Generates the body of a vectorized loop, see Vectorize. Each
+	// statement x[i] = y[i] + z[i] - ... computes 16 bytes of x at once
+	// in %xmm registers.
+	private void gen_vector(Node node) {
+		if (node.kind == Node.Kind.BLOCK) {
+			for (Node n = node.body; n != null; n = n.next)
+				gen_vector(n);
+			return;
+		}
+
+		Node assign = node.lhs;
+		String suffix = assign.ty.size == 1 ? "b" : "q";
+		gen_vector_expr(assign.rhs, 0, suffix);
+		out.ins("movdqu", Code.Opd.reg("%xmm0"), gen_lvalue(assign.lhs));
+	}
+
+	// Computes the sum `node` into %xmm<r>, using the registers above
+	// it for the operands.
+	private void gen_vector_expr(Node node, int r, String suffix) {
+		switch (node.kind) {
+		case ADD:
+		case SUB:
+			gen_vector_expr(node.lhs, r, suffix);
+			gen_vector_expr(node.rhs, r + 1, suffix);
+			String op = (node.kind == Node.Kind.ADD ? "padd" : "psub") + suffix;
+			out.ins(op, "%xmm" + (r + 1), "%xmm" + r);
+			return;
+		default:
+			out.ins("movdqu", gen_lvalue(node), Code.Opd.reg("%xmm" + r));
+			return;
+		}
+	}
+
+	private static final String argreg8[] = {"%dil", "%sil", "%dl", "%cl", "%r8b", "%r9b"};
+	private static final String argreg64[] = {"%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"};	
+	private Obj current_fn;
+	private String return_label;
+	private int inline_end; // Label a return jumps to inside an INLINE node, or 0
+	private boolean inline_tail; // The INLINE node is the value of a return
+	private boolean returned;    // The next INLINE node is the value of a return
+	private boolean tail_calls;  // Tail calls are possible in current_fn
 	
-	private static int i = 1;
-	private static int count() {
+	// Labels are numbered per function and carry the function name, so
+	// a function's code does not depend on the functions around it.
+	private int i = 1;
+	private int count() {
 		return i++;
 	}
 
-	// Assign offsets to local variables.
-	private static void assign_lvar_offsets(Obj prog) {
+	// Callee-saved registers for local variables. They survive calls,
+	// so a local kept in one costs nothing around a call but the save
+	// and restore in the function's prologue and epilogue.
+	private static final String calleereg[] = {"%rbx", "%r12", "%r13", "%r14", "%r15"};
+
+	// Assign registers and offsets to local variables.
+	private static void assign_lvar_offsets(Obj prog, Options opt) {
 		for (Obj fn = prog; fn != null; fn = fn.next) {
 			if (!fn.is_function)
 			      continue;
 			
-			int offset = 0;
-			for (Obj var = fn.locals; var != null; var = var.next) {
-				offset += var.ty.size;
-				var.offset = -offset;
-			}
+			if (!opt.stack_machine && !opt.ssa)
+				assign_lvar_regs(fn);
+
+			int offset = Frame.layout(fn);
+
+			// Slots to save the callee-saved registers in.
+			offset = align_to(offset, 8) + fn.callee_saved * 8;
 			fn.stack_size = align_to(offset, 16);
 		}
 	}
+
+	// Keeps the most used scalar locals in callee-saved registers for
+	// the whole function. Uses in loops count more, the deeper the loop
+	// the more.
+	private static void assign_lvar_regs(Obj fn) {
+		if (takes_local_address(fn.body)) return;
+
+		Map<Obj, Integer> uses = new IdentityHashMap<>();
+		count_uses(fn.body, 1, uses);
+
+		List<Obj> vars = new ArrayList<>();
+		for (Obj var = fn.locals; var != null; var = var.next)
+			if (var.ty.kind != Type.Kind.ARRAY && uses.containsKey(var))
+				vars.add(var);
+		vars.sort((a, b) -> Integer.compare(uses.get(b), uses.get(a)));
+
+		int n = Math.min(vars.size(), calleereg.length);
+		for (int i = 0; i < n; i++)
+			vars.get(i).reg = calleereg[i];
+		fn.callee_saved = n;
+	}
+
+	// Returns true if the address of a scalar local is taken anywhere
+	// in `node`. Pointer arithmetic on such an address can reach the
+	// slots of its neighbours, so none of the function's locals may
+	// leave the frame then.
+	static boolean takes_local_address(Node node) {
+		if (node == null) return false;
+		if (node.kind == Node.Kind.ADDR && node.lhs.kind == Node.Kind.VAR
+				&& node.lhs.var.is_local && node.lhs.var.ty.kind != Type.Kind.ARRAY)
+			return true;
+
+		if (takes_local_address(node.lhs) || takes_local_address(node.rhs)
+				|| takes_local_address(node.cond) || takes_local_address(node.then)
+				|| takes_local_address(node.els) || takes_local_address(node.init)
+				|| takes_local_address(node.inc))
+			return true;
+		for (Node n = node.body; n != null; n = n.next)
+			if (takes_local_address(n)) return true;
+		for (Node n = node.args; n != null; n = n.next)
+			if (takes_local_address(n)) return true;
+		return false;
+	}
+
+	// Whether a pointer may point into the frame of `fn`: it has a
+	// local array, or takes the address of a scalar local. A tail call
+	// frees the frame while the callee may still use such a pointer.
+	static boolean has_addressable_locals(Obj fn) {
+		for (Obj var = fn.locals; var != null; var = var.next)
+			if (var.ty.kind == Type.Kind.ARRAY) return true;
+		return takes_local_address(fn.body);
+	}
+
+	private static void count_uses(Node node, int weight, Map<Obj, Integer> uses) {
+		if (node == null) return;
+
+		switch (node.kind) {
+		case VAR:
+			uses.merge(node.var, weight, Integer::sum);
+			return;
+		case FOR: {
+			count_uses(node.init, weight, uses);
+			int w = Math.min(weight * 8, 1 << 24);
+			count_uses(node.cond, w, uses);
+			count_uses(node.then, w, uses);
+			count_uses(node.inc, w, uses);
+			return;
+		}
+		default:
+			break;
+		}
+
+		count_uses(node.lhs, weight, uses);
+		count_uses(node.rhs, weight, uses);
+		count_uses(node.cond, weight, uses);
+		count_uses(node.then, weight, uses);
+		count_uses(node.els, weight, uses);
+		for (Node n = node.body; n != null; n = n.next)
+			count_uses(n, weight, uses);
+		for (Node n = node.args; n != null; n = n.next)
+			count_uses(n, weight, uses);
+	}
 	
-	private static void emit_data(Obj prog) {
+	private static void emit_data(Obj prog, AsmWriter out) {
 		for (Obj var = prog; var != null; var = var.next) {
 			if (var.is_function) continue;
 
-			printf("  .data\n");
-			printf("  .globl %s\n", var.name);
-			printf("%s:\n", var.name);
-			printf("  .zero %d\n", var.ty.size);
+			out.directive(".data");
+			out.directive(".globl", var.name);
+			out.label(var.name);
+			out.directive(".zero", var.ty.size);
 		}
 	}
 
-	private static void emit_text(Obj prog) {
-		for (Obj fn = prog; fn != null; fn = fn.next) {
-			if (!fn.is_function) continue;
-
-			printf("  .globl %s\n", fn.name);
-			printf("  .text\n");
-			printf("%s:\n", fn.name);
-			current_fn = fn;
-
-			// Prologue
-			printf("  push %%rbp\n");
-			printf("  mov %%rsp, %%rbp\n");
-			printf("  sub $%d, %%rsp\n", fn.stack_size);
-
-			// Save passed-by-register arguments to the stack
-			int i = 0;
-			for (Obj var = fn.params; var != null; var = var.next)
-				if (var.ty.size == 1) 
-					printf("  mov %s, %d(%%rbp)\n", argreg8[i++], var.offset);
-				else 
-					printf("  mov %s, %d(%%rbp)\n", argreg64[i++], var.offset);
-
-			// Emit code
-			gen_stmt(fn.body);
-			assert (depth == 0);
-
-			// Epilogue
-			printf(".L.return.%s:\n", fn.name);
-			printf("  mov %%rbp, %%rsp\n");
-			printf("  pop %%rbp\n");
-			printf("  ret\n");
-		}
-	}
-
-	public static void codegen(Obj prog) {
-		assign_lvar_offsets(prog);
-		emit_data(prog);
-		emit_text(prog);
+	// Units with fewer functions than this are generated on the
+	// calling thread; forking does not pay off for them.
+	private static final int PARALLEL_THRESHOLD = 16;
+
+	// Functions are independent once their stack frames are laid out.
+	// Each one is generated into its own buffer, on the fork-join pool
+	// for large units, and the buffers are appended in list order, so
+	// the output is the same as generating them one after another.
+	private static void emit_text(Obj prog, AsmWriter out, Options opt) {
+		List<Obj> fns = new ArrayList<>();
+		for (Obj fn = prog; fn != null; fn = fn.next)
+			if (fn.is_function) fns.add(fn);
+
+		Peephole peephole = new Peephole();
+		Stream<Obj> stream = fns.size() >= PARALLEL_THRESHOLD ? fns.parallelStream() : fns.stream();
+		stream.map(fn -> gen_function(fn, opt, peephole)).forEachOrdered(out::append);
+
+		if (opt.peephole_report) peephole.report(out);
+	}
+
+	private static AsmWriter gen_function(Obj fn, Options opt, Peephole peephole) {
+		Code code = new Code();
+		if (opt.ssa) IrLower.emit_function(code, fn, opt);
+		else new Assembly(code, opt).emit_function(fn);
+		if (opt.peephole) peephole.run(code);
+
+		AsmWriter w = new AsmWriter();
+		if (opt.frame_map) Frame.map(fn, w);
+		code.write_to(w);
+		return w;
+	}
+
+	private void emit_function(Obj fn) {
+		out.directive(".globl", fn.name);
+		out.directive(".text");
+		out.label(fn.name);
+		current_fn = fn;
+		return_label = ".L.return." + fn.name;
+		tail_calls = opt.tail_calls && !has_addressable_locals(fn);
+
+		// Prologue
+		out.ins("push", "%rbp");
+		out.ins("mov", "%rsp", "%rbp");
+		out.ins_imm("sub", fn.stack_size, "%rsp");
+		for (int r = 0; r < fn.callee_saved; r++)
+			out.ins_store("mov", calleereg[r], saved_reg_offset(fn, r), "%rbp");
+
+		// Save passed-by-register arguments to the stack, or to the
+		// registers they live in
+		int i = 0;
+		for (Obj var = fn.params; var != null; var = var.next, i++)
+			if (var.reg != null) {
+				if (var.ty.size == 1)
+					out.ins("movsbq", argreg8[i], var.reg);
+				else
+					out.ins("mov", argreg64[i], var.reg);
+			} else if (var.ty.size == 1) 
+				out.ins_store("mov", argreg8[i], var.offset, "%rbp");
+			else 
+				out.ins_store("mov", argreg64[i], var.offset, "%rbp");
+
+		// Emit code
+		label(fn.body);
+		gen_stmt(fn.body);
+		assert (depth == 0 && stack == 0);
+
+		// Epilogue
+		out.label(return_label);
+		gen_leave(fn);
+		out.ins("ret");
+	}
+
+	// Restores the callee-saved registers and the caller's frame.
+	private void gen_leave(Obj fn) {
+		for (int r = 0; r < fn.callee_saved; r++)
+			out.ins_load("mov", saved_reg_offset(fn, r), "%rbp", calleereg[r]);
+		out.ins("mov", "%rbp", "%rsp");
+		out.ins("pop", "%rbp");
+	}
+
+	// The save slots are the last ones of the frame.
+	private static int saved_reg_offset(Obj fn, int i) {
+		return -fn.stack_size + i * 8;
+	}
+
+	static void codegen(Obj prog, AsmWriter out, Options opt) {
+		assign_lvar_offsets(prog, opt);
+		emit_data(prog, out);
+		emit_text(prog, out, opt);
 	}
 }
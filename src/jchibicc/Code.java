@@ -0,0 +1,209 @@
+package jchibicc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The assembly of a function as a list of instructions, labels and
+// directives with structured operands, so that Peephole can rewrite it
+// before it is written out with AsmWriter.
+//
+// All instructions are written in AT&T syntax, source operand first:
+//   ins("add", "%rdi", "%rax")          add %rdi, %rax
+//   ins_imm("mov", 5, "%rax")           mov $5, %rax
+//   ins_load("mov", -8, "%rbp", "%rax") mov -8(%rbp), %rax
+class Code {
+
+	// An operand.
+	static final class Opd {
+		static final int REG = 0; // reg
+		static final int IMM = 1; // $val
+		static final int MEM = 2; // val(reg) or val(reg,idx,scale)
+		static final int RIP = 3; // sym(%rip)
+		static final int SYM = 4; // sym: a jump or call target, or a directive argument
+
+		final int kind;
+		final String reg;
+		final long val;
+		final String sym;
+		final String idx;
+		final int scale;
+
+		private Opd(int kind, String reg, long val, String sym, String idx, int scale) {
+			this.kind = kind;
+			this.reg = reg;
+			this.val = val;
+			this.sym = sym;
+			this.idx = idx;
+			this.scale = scale;
+		}
+
+		static Opd reg(String reg) {
+			return new Opd(REG, reg, 0, null, null, 0);
+		}
+
+		static Opd imm(long val) {
+			return new Opd(IMM, null, val, null, null, 0);
+		}
+
+		static Opd mem(long disp, String base) {
+			return new Opd(MEM, base, disp, null, null, 0);
+		}
+
+		// disp(base,idx,scale), with a scale of 1, 2, 4 or 8.
+		static Opd mem(long disp, String base, String idx, int scale) {
+			return new Opd(MEM, base, disp, null, idx, scale);
+		}
+
+		static Opd rip(String sym) {
+			return new Opd(RIP, null, 0, sym, null, 0);
+		}
+
+		static Opd sym(String sym) {
+			return new Opd(SYM, null, 0, sym, null, 0);
+		}
+
+		boolean is_reg(String r) {
+			return kind == REG && reg.equals(r);
+		}
+
+		boolean same(Opd o) {
+			return o != null && kind == o.kind && val == o.val && scale == o.scale
+					&& (reg == null ? o.reg == null : reg.equals(o.reg))
+					&& (idx == null ? o.idx == null : idx.equals(o.idx))
+					&& (sym == null ? o.sym == null : sym.equals(o.sym));
+		}
+
+		void write(AsmWriter w) {
+			switch (kind) {
+			case REG:
+				w.str(reg);
+				return;
+			case IMM:
+				w.ch('$').num(val);
+				return;
+			case MEM:
+				if (val != 0) w.num(val);
+				w.ch('(').str(reg);
+				if (idx != null) w.ch(',').str(idx).ch(',').num(scale);
+				w.ch(')');
+				return;
+			case RIP:
+				w.str(sym).str("(%rip)");
+				return;
+			default:
+				w.str(sym);
+				return;
+			}
+		}
+	}
+
+	static final int INS = 0;
+	static final int LABEL = 1;
+	static final int DIRECTIVE = 2;
+
+	// An instruction "op a, b", a label "op:" or a directive "op a".
+	// An instruction with one operand has it in `a`.
+	static final class Line {
+		final int type;
+		String op;
+		Opd a;
+		Opd b;
+
+		Line(int type, String op, Opd a, Opd b) {
+			this.type = type;
+			this.op = op;
+			this.a = a;
+			this.b = b;
+		}
+
+		boolean is(String op) {
+			return type == INS && this.op.equals(op);
+		}
+	}
+
+	final List<Line> lines = new ArrayList<>();
+
+	private void add(int type, String op, Opd a, Opd b) {
+		lines.add(new Line(type, op, a, b));
+	}
+
+	static String label_name(String kind, String fn, int n) {
+		return ".L." + kind + "." + fn + "." + n;
+	}
+
+	void ins(String op) {
+		add(INS, op, null, null);
+	}
+
+	void ins(String op, String a) {
+		add(INS, op, a.startsWith("%") ? Opd.reg(a) : Opd.sym(a), null);
+	}
+
+	void ins(String op, String src, String dst) {
+		add(INS, op, Opd.reg(src), Opd.reg(dst));
+	}
+
+	void ins_imm(String op, long imm, String dst) {
+		add(INS, op, Opd.imm(imm), Opd.reg(dst));
+	}
+
+	void ins_load(String op, int disp, String base, String dst) {
+		add(INS, op, Opd.mem(disp, base), Opd.reg(dst));
+	}
+
+	void ins_store(String op, String src, int disp, String base) {
+		add(INS, op, Opd.reg(src), Opd.mem(disp, base));
+	}
+
+	void ins_rip(String op, String sym, String dst) {
+		add(INS, op, Opd.rip(sym), Opd.reg(dst));
+	}
+
+	void ins(String op, Opd a, Opd b) {
+		add(INS, op, a, b);
+	}
+
+	void ins_jump(String op, String kind, String fn, int n) {
+		add(INS, op, Opd.sym(label_name(kind, fn, n)), null);
+	}
+
+	void label(String kind, String fn, int n) {
+		add(LABEL, label_name(kind, fn, n), null, null);
+	}
+
+	void label(String name) {
+		add(LABEL, name, null, null);
+	}
+
+	void directive(String d) {
+		add(DIRECTIVE, d, null, null);
+	}
+
+	void directive(String d, String arg) {
+		add(DIRECTIVE, d, Opd.sym(arg), null);
+	}
+
+	void directive(String d, long n) {
+		add(DIRECTIVE, d, Opd.imm(n), null);
+	}
+
+	void write_to(AsmWriter w) {
+		for (Line l : lines) {
+			if (l.type == LABEL) {
+				w.str(l.op).str(":\n");
+				continue;
+			}
+			w.str("  ").str(l.op);
+			if (l.a != null) {
+				w.ch(' ');
+				if (l.type == DIRECTIVE && l.a.kind == Opd.IMM) w.num(l.a.val);
+				else l.a.write(w);
+			}
+			if (l.b != null) {
+				w.str(", ");
+				l.b.write(w);
+			}
+			w.ch('\n');
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package jchibicc;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Dead code elimination.
+//
+// Runs after inlining, which leaves behind parameter copies and
+// returns that are no longer needed. It removes
+//
+//  - statements that follow a "return" in the same block, or another
+//    statement that does not complete, like for (;;),
+//  - expression statements without an effect, like `x+1;`,
+//  - assignments to locals that are never read, keeping the right-hand
+//    side if it has an effect, and then the locals that are no longer
+//    referenced at all, and
+//  - functions that no call chain from main reaches, if the unit
+//    defines main.
+//
+// Locals are left alone in a function that takes the address of a
+// scalar local, since a pointer can reach any slot of its frame then.
+class DeadCode {
+
+	// Locals of the current function that are read somewhere, or null
+	// if stores are not to be removed.
+	private Set<Obj> read;
+	private boolean changed;
+
+	static Obj eliminate(Obj prog) {
+		for (Obj fn = prog; fn != null; fn = fn.next)
+			if (fn.is_function) new DeadCode().function(fn);
+		return remove_unreached_functions(prog);
+	}
+
+	private void function(Obj fn) {
+		if (Assembly.takes_local_address(fn.body)) {
+			fn.body = or_empty(stmt(fn.body), fn.body);
+			return;
+		}
+
+		// Removing a store may leave another local unread.
+		do {
+			changed = false;
+			read = Collections.newSetFromMap(new IdentityHashMap<>());
+			find_reads(fn.body);
+			fn.body = or_empty(stmt(fn.body), fn.body);
+		} while (changed);
+
+		// Drop the locals that are not referenced any more. Parameters
+		// stay; the prologue stores the arguments to them.
+		Set<Obj> used = Collections.newSetFromMap(new IdentityHashMap<>());
+		find_vars(fn.body, used);
+		Obj head = new Obj();
+		Obj cur = head;
+		for (Obj var = fn.locals; var != fn.params; var = var.next)
+			if (used.contains(var)) cur = cur.next = var;
+		cur.next = fn.params;
+		fn.locals = head.next;
+	}
+
+	// Simplifies the statement `node`. Returns null if it has no effect.
+	private Node stmt(Node node) {
+		switch (node.kind) {
+		case BLOCK:
+			node.body = stmts(node.body);
+			return node.body != null ? node : null;
+		case IF:
+			node.cond = expr(node.cond);
+			node.then = or_empty(stmt(node.then), node);
+			if (node.els != null) node.els = stmt(node.els);
+			if (node.els == null && node.then.kind == Node.Kind.BLOCK && node.then.body == null
+					&& Fold.is_pure(node.cond)) {
+				changed = true;
+				return null;
+			}
+			return node;
+		case FOR:
+			if (node.init != null) node.init = stmt(node.init);
+			if (node.cond != null) node.cond = expr(node.cond);
+			if (node.inc != null) {
+				node.inc = expr(node.inc);
+				if (Fold.is_pure(node.inc)) node.inc = null;
+			}
+			node.then = or_empty(stmt(node.then), node);
+			return node;
+		case RETURN:
+			node.lhs = expr(node.lhs);
+			return node;
+		case EXPR_STMT:
+			node.lhs = expr(node.lhs);
+			if (!Fold.is_pure(node.lhs)) return node;
+			changed = true;
+			return null;
+		default:
+			return node;
+		}
+	}
+
+	// Simplifies a list of statements, and drops those that cannot be
+	// reached.
+	private Node stmts(Node node) {
+		Node head = new Node();
+		Node cur = head;
+		for (Node n = node; n != null;) {
+			Node next = n.next;
+			Node s = stmt(n);
+			if (s != null) {
+				cur = cur.next = s;
+				cur.next = null;
+				if (!completes(s)) {
+					if (next != null) changed = true;
+					break;
+				}
+			}
+			n = next;
+		}
+		return head.next;
+	}
+
+	private Node expr(Node node) {
+		if (node == null) return null;
+
+		node.lhs = expr(node.lhs);
+		node.rhs = expr(node.rhs);
+		node.args = expr_list(node.args);
+		if (node.kind == Node.Kind.INLINE) node.body = stmts(node.body);
+
+		if (node.kind == Node.Kind.ASSIGN && is_dead_store(node.lhs)) {
+			changed = true;
+			return node.rhs;
+		}
+		return node;
+	}
+
+	private Node expr_list(Node node) {
+		Node head = new Node();
+		Node cur = head;
+		for (Node n = node; n != null;) {
+			Node next = n.next;
+			cur = cur.next = expr(n);
+			cur.next = null;
+			n = next;
+		}
+		return head.next;
+	}
+
+	private boolean is_dead_store(Node lhs) {
+		return read != null && lhs.kind == Node.Kind.VAR && lhs.var.is_local
+				&& lhs.var.ty.kind != Type.Kind.ARRAY && !read.contains(lhs.var);
+	}
+
+	// Whether control can go on to the statement after `node`. There
+	// is no break, so a loop without a condition never ends but by a
+	// return.
+	private static boolean completes(Node node) {
+		switch (node.kind) {
+		case RETURN:
+			return false;
+		case BLOCK: {
+			Node last = null;
+			for (Node n = node.body; n != null; n = n.next)
+				last = n;
+			return last == null || completes(last);
+		}
+		case IF:
+			return node.els == null || completes(node.then) || completes(node.els);
+		case FOR:
+			return node.cond != null;
+		default:
+			return true;
+		}
+	}
+
+	private static Node or_empty(Node stmt, Node at) {
+		if (stmt != null) return stmt;
+		Node n = new Node();
+		n.kind = Node.Kind.BLOCK;
+		n.token = at.token;
+		return n;
+	}
+
+	// Collects the locals whose value is used: every variable reference
+	// but the target of an assignment.
+	private void find_reads(Node node) {
+		if (node == null) return;
+		if (node.kind == Node.Kind.VAR) read.add(node.var);
+		if (node.kind != Node.Kind.ASSIGN || node.lhs.kind != Node.Kind.VAR) find_reads(node.lhs);
+		find_reads(node.rhs);
+		find_reads(node.cond);
+		find_reads(node.then);
+		find_reads(node.els);
+		find_reads(node.init);
+		find_reads(node.inc);
+		for (Node n = node.body; n != null; n = n.next)
+			find_reads(n);
+		for (Node n = node.args; n != null; n = n.next)
+			find_reads(n);
+	}
+
+	private static void find_vars(Node node, Set<Obj> vars) {
+		if (node == null) return;
+		if (node.kind == Node.Kind.VAR) vars.add(node.var);
+		find_vars(node.lhs, vars);
+		find_vars(node.rhs, vars);
+		find_vars(node.cond, vars);
+		find_vars(node.then, vars);
+		find_vars(node.els, vars);
+		find_vars(node.init, vars);
+		find_vars(node.inc, vars);
+		for (Node n = node.body; n != null; n = n.next)
+			find_vars(n, vars);
+		for (Node n = node.args; n != null; n = n.next)
+			find_vars(n, vars);
+	}
+
+	// Removes the functions that main cannot reach through calls.
+	private static Obj remove_unreached_functions(Obj prog) {
+		Map<String, Obj> fns = new HashMap<>();
+		for (Obj fn = prog; fn != null; fn = fn.next)
+			if (fn.is_function) fns.put(fn.name, fn);
+		Obj main = fns.get("main");
+		if (main == null) return prog;
+
+		Set<Obj> reached = Collections.newSetFromMap(new IdentityHashMap<>());
+		Deque<Obj> work = new ArrayDeque<>();
+		reached.add(main);
+		work.push(main);
+		while (!work.isEmpty())
+			find_calls(work.pop().body, fns, reached, work);
+
+		Obj head = new Obj();
+		Obj cur = head;
+		for (Obj obj = prog; obj != null; obj = obj.next)
+			if (!obj.is_function || reached.contains(obj)) cur = cur.next = obj;
+		cur.next = null;
+		return head.next;
+	}
+
+	private static void find_calls(Node node, Map<String, Obj> fns, Set<Obj> reached, Deque<Obj> work) {
+		if (node == null) return;
+		if (node.kind == Node.Kind.FUNCALL) {
+			Obj fn = fns.get(node.funcname);
+			if (fn != null && reached.add(fn)) work.push(fn);
+		}
+		find_calls(node.lhs, fns, reached, work);
+		find_calls(node.rhs, fns, reached, work);
+		find_calls(node.cond, fns, reached, work);
+		find_calls(node.then, fns, reached, work);
+		find_calls(node.els, fns, reached, work);
+		find_calls(node.init, fns, reached, work);
+		find_calls(node.inc, fns, reached, work);
+		for (Node n = node.body; n != null; n = n.next)
+			find_calls(n, fns, reached, work);
+		for (Node n = node.args; n != null; n = n.next)
+			find_calls(n, fns, reached, work);
+	}
+}
@@ -0,0 +1,156 @@
+package jchibicc;
+
+// Constant folding and algebraic simplification.
+//
+// Runs over each function body after Type.add_type has typed the tree.
+// Operators whose operands are all integer literals are evaluated at
+// compile time, the identities x+0, x-0, x*1, x/1 and x*0 are applied,
+// and an "if" with a constant condition is replaced by the branch that
+// is taken. The parser's pointer arithmetic (`p + i*8`) and sizeof
+// produce a lot of such subtrees.
+//
+// Literals are lexed into 64 bits and arithmetic is done on 64 bits,
+// as at runtime. Divisions that would trap at runtime (by zero, or
+// MIN_VALUE by -1) are left alone.
+class Fold {
+
+	static void fold(Obj prog) {
+		for (Obj fn = prog; fn != null; fn = fn.next)
+			if (fn.is_function) fn.body = fold(fn.body);
+	}
+
+	// Folds `node` and returns the node that replaces it.
+	static Node fold(Node node) {
+		if (node == null) return null;
+
+		node.lhs = fold(node.lhs);
+		node.rhs = fold(node.rhs);
+		node.cond = fold(node.cond);
+		node.then = fold(node.then);
+		node.els = fold(node.els);
+		node.init = fold(node.init);
+		node.inc = fold(node.inc);
+		node.body = fold_list(node.body);
+		node.args = fold_list(node.args);
+
+		switch (node.kind) {
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case EQ:
+		case NE:
+		case LT:
+		case LE:
+			return fold_binary(node);
+		case NEG:
+			if (node.lhs.kind == Node.Kind.NUM) return num(node, -node.lhs.val);
+			return node;
+		case IF:
+			if (node.cond.kind != Node.Kind.NUM) return node;
+			if (node.cond.val != 0) return node.then;
+			if (node.els != null) return node.els;
+			return empty_block(node);
+		case FOR:
+			// for (;1;) is for (;;)
+			if (node.cond != null && node.cond.kind == Node.Kind.NUM && node.cond.val != 0)
+				node.cond = null;
+			return node;
+		default:
+			return node;
+		}
+	}
+
+	// Folds each node of a list linked by `next` and relinks the
+	// replacements in its place.
+	private static Node fold_list(Node node) {
+		Node head = new Node();
+		Node cur = head;
+		for (Node n = node; n != null;) {
+			Node next = n.next;
+			cur = cur.next = fold(n);
+			cur.next = null;
+			n = next;
+		}
+		return head.next;
+	}
+
+	private static Node fold_binary(Node node) {
+		Node lhs = node.lhs;
+		Node rhs = node.rhs;
+
+		if (lhs.kind == Node.Kind.NUM && rhs.kind == Node.Kind.NUM) {
+			long a = lhs.val;
+			long b = rhs.val;
+			switch (node.kind) {
+			case ADD: return num(node, a + b);
+			case SUB: return num(node, a - b);
+			case MUL: return num(node, a * b);
+			case DIV:
+				if (b == 0 || (a == Long.MIN_VALUE && b == -1)) return node;
+				return num(node, a / b);
+			case EQ: return num(node, a == b ? 1 : 0);
+			case NE: return num(node, a != b ? 1 : 0);
+			case LT: return num(node, a < b ? 1 : 0);
+			case LE: return num(node, a <= b ? 1 : 0);
+			default: return node;
+			}
+		}
+
+		switch (node.kind) {
+		case ADD:
+			if (is_num(rhs, 0)) return lhs;
+			if (is_num(lhs, 0)) return rhs;
+			return node;
+		case SUB:
+			if (is_num(rhs, 0)) return lhs;
+			return node;
+		case MUL:
+			if (is_num(rhs, 1)) return lhs;
+			if (is_num(lhs, 1)) return rhs;
+			if (is_num(rhs, 0) && is_pure(lhs)) return num(node, 0);
+			if (is_num(lhs, 0) && is_pure(rhs)) return num(node, 0);
+			return node;
+		case DIV:
+			if (is_num(rhs, 1)) return lhs;
+			return node;
+		default:
+			return node;
+		}
+	}
+
+	private static boolean is_num(Node node, long val) {
+		return node.kind == Node.Kind.NUM && node.val == val;
+	}
+
+	// Returns true if evaluating `node` has no effect other than
+	// producing its value, so that the value may be discarded.
+	static boolean is_pure(Node node) {
+		if (node == null) return true;
+		switch (node.kind) {
+		case ASSIGN:
+		case FUNCALL:
+		case INLINE:
+			return false;
+		default:
+			return is_pure(node.lhs) && is_pure(node.rhs);
+		}
+	}
+
+	// Replaces `node` by an integer literal of the same type.
+	private static Node num(Node node, long val) {
+		Node n = new Node();
+		n.kind = Node.Kind.NUM;
+		n.token = node.token;
+		n.ty = node.ty;
+		n.val = val;
+		return n;
+	}
+
+	private static Node empty_block(Node node) {
+		Node n = new Node();
+		n.kind = Node.Kind.BLOCK;
+		n.token = node.token;
+		return n;
+	}
+}
@@ -0,0 +1,132 @@
+package jchibicc;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Stack frame layout.
+//
+// The locals that are not kept in registers get slots below %rbp. Each
+// slot is aligned to its type, so a char array does not leave the ints
+// after it misaligned, and the locals of blocks that are never active
+// at the same time share space:
+//
+//   { char a[100]; ... }
+//   { int b[10]; ... }
+//
+// Here a and b take the same bytes. A local is live during the block
+// it is declared in (Node.decls). Passes that copy a block, like
+// Unroll, keep the declarations on the copies, so a local may be
+// declared by several blocks and is live from the first to the last.
+// A local that no block in the tree declares, like a parameter or a
+// variable a pass added, is live in the whole function.
+//
+// The nodes of the body are numbered in depth-first order, so a block
+// covers a range of numbers and two blocks are active at the same time
+// only if their ranges overlap. Locals are placed the most aligned
+// first, then the largest first, each at the lowest offset that is
+// aligned and does not overlap a local that is live at the same time.
+class Frame {
+
+	private final Map<Obj, int[]> live = new IdentityHashMap<>();
+	private int n;
+
+	// Sets the offsets of the locals of `fn` that have no register.
+	// Returns the number of bytes they take.
+	static int layout(Obj fn) {
+		Frame f = new Frame();
+		f.number(fn.body);
+
+		List<Obj> vars = new ArrayList<>();
+		for (Obj var = fn.locals; var != null; var = var.next)
+			if (var.reg == null) vars.add(var);
+		vars.sort((a, b) -> align(a.ty) != align(b.ty) ? align(b.ty) - align(a.ty) : b.ty.size - a.ty.size);
+
+		List<Obj> placed = new ArrayList<>();
+		int size = 0;
+		for (Obj var : vars) {
+			int[] r = f.range(var);
+			int align = align(var.ty);
+
+			// `end` is the distance from %rbp to the slot's first byte.
+			int end = Assembly.align_to(var.ty.size, align);
+			for (boolean moved = true; moved;) {
+				moved = false;
+				for (Obj other : placed) {
+					int[] o = f.range(other);
+					if (r[0] >= o[1] || o[0] >= r[1]) continue;
+					int other_end = -other.offset;
+					if (end - var.ty.size >= other_end || other_end - other.ty.size >= end) continue;
+					end = Assembly.align_to(other_end + var.ty.size, align);
+					moved = true;
+				}
+			}
+
+			var.offset = -end;
+			placed.add(var);
+			size = Math.max(size, end);
+		}
+		return size;
+	}
+
+	// Appends the frame map of `fn` to `out` as comments: where each
+	// local lives, and the size of the frame.
+	static void map(Obj fn, AsmWriter out) {
+		out.str("# frame ").str(fn.name).str(", ").str(Integer.toString(fn.stack_size)).str(" bytes\n");
+		List<Obj> vars = new ArrayList<>();
+		for (Obj var = fn.locals; var != null; var = var.next)
+			vars.add(var);
+		vars.sort((a, b) -> a.reg != null || b.reg != null
+				? Boolean.compare(a.reg == null, b.reg == null) : Integer.compare(b.offset, a.offset));
+
+		for (Obj var : vars) {
+			if (var.reg != null) {
+				out.str("#   ").str(var.reg).str(" ").str(var.name).ch('\n');
+				continue;
+			}
+			out.str("#   ").str(Integer.toString(var.offset)).str(" ").str(var.name).str(", ")
+					.str(Integer.toString(var.ty.size)).str(" bytes\n");
+		}
+	}
+
+	// The alignment of a slot of type `ty`.
+	private static int align(Type ty) {
+		if (ty.kind == Type.Kind.ARRAY) return align(ty.base);
+		return ty.size;
+	}
+
+	// The nodes a local is live across, [from, to), or all of them.
+	private int[] range(Obj var) {
+		int[] r = live.get(var);
+		return r != null ? r : new int[] {0, Integer.MAX_VALUE};
+	}
+
+	private void number(Node node) {
+		if (node == null) return;
+		int start = n++;
+
+		number(node.lhs);
+		number(node.rhs);
+		number(node.cond);
+		number(node.then);
+		number(node.els);
+		number(node.init);
+		number(node.inc);
+		for (Node c = node.body; c != null; c = c.next)
+			number(c);
+		for (Node c = node.args; c != null; c = c.next)
+			number(c);
+
+		if (node.decls == null) return;
+		for (Obj var : node.decls) {
+			int[] r = live.get(var);
+			if (r == null) {
+				live.put(var, new int[] {start, n});
+				continue;
+			}
+			r[0] = Math.min(r[0], start);
+			r[1] = Math.max(r[1], n);
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package jchibicc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Function inlining.
+//
+// A call to a small function defined in the same translation unit is
+// replaced by an INLINE node holding a copy of the callee's body. The
+// callee's parameters and locals get fresh copies in the caller's
+// frame, the parameters are assigned the arguments, and a "return" in
+// the copy jumps to the end of the INLINE node with its value instead
+// of leaving the function (see Assembly.gen_stmt).
+//
+// Only the calls written in a function are considered, not those in
+// bodies that were inlined into it, so a recursive function is
+// inlined one level deep at most. A callee that takes the address of
+// a local is not inlined: that would keep all of the caller's locals
+// in memory.
+class Inline {
+
+	// The largest callee, in AST nodes, that is inlined.
+	static final int MAX_SIZE = 40;
+
+	private final Map<String, Obj> functions = new HashMap<>();
+	private final List<String> report = new ArrayList<>();
+
+	private Obj caller;
+	private Map<Obj, Obj> copies;
+
+	// Inlines calls in all functions of `prog`. Returns a line for each
+	// call that was inlined, for -finline-report.
+	static List<String> inline(Obj prog) {
+		Inline in = new Inline();
+		for (Obj fn = prog; fn != null; fn = fn.next)
+			if (fn.is_function) in.functions.put(fn.name, fn);
+
+		for (Obj fn = prog; fn != null; fn = fn.next) {
+			if (!fn.is_function) continue;
+			in.caller = fn;
+			fn.body = in.walk(fn.body);
+		}
+		return in.report;
+	}
+
+	// Replaces the inlinable calls in `node` and returns the node that
+	// replaces it.
+	private Node walk(Node node) {
+		if (node == null) return null;
+
+		node.lhs = walk(node.lhs);
+		node.rhs = walk(node.rhs);
+		node.cond = walk(node.cond);
+		node.then = walk(node.then);
+		node.els = walk(node.els);
+		node.init = walk(node.init);
+		node.inc = walk(node.inc);
+		node.body = walk_list(node.body);
+		node.args = walk_list(node.args);
+
+		if (node.kind != Node.Kind.FUNCALL) return node;
+		Obj callee = functions.get(node.funcname);
+		if (callee == null || callee == caller) return node;
+		int size = size(callee.body);
+		if (size > MAX_SIZE || Assembly.takes_local_address(callee.body)) return node;
+		if (nargs(node) != nparams(callee)) return node;
+
+		report.add(callee.name + " into " + caller.name + ", " + size + " nodes");
+		return expand(node, callee);
+	}
+
+	// A call with too few arguments has no value for some parameters,
+	// and one with too many still has to evaluate the extra arguments,
+	// so only calls with one argument per parameter are inlined.
+	private static int nargs(Node call) {
+		int n = 0;
+		for (Node arg = call.args; arg != null; arg = arg.next)
+			n++;
+		return n;
+	}
+
+	private static int nparams(Obj fn) {
+		int n = 0;
+		for (Obj param = fn.params; param != null; param = param.next)
+			n++;
+		return n;
+	}
+
+	private Node walk_list(Node node) {
+		Node head = new Node();
+		Node cur = head;
+		for (Node n = node; n != null;) {
+			Node next = n.next;
+			cur = cur.next = walk(n);
+			cur.next = null;
+			n = next;
+		}
+		return head.next;
+	}
+
+	// Builds the INLINE node for a call to `callee`:
+	//
+	//   { p1 = arg1; ...; pn = argn; body }
+	private Node expand(Node call, Obj callee) {
+		copies = new IdentityHashMap<>();
+		for (Obj var = callee.locals; var != null; var = var.next)
+			copies.put(var, caller.new_local(var.name, var.ty));
+
+		Node head = new Node();
+		Node cur = head;
+		Node arg = call.args;
+		for (Obj param = callee.params; param != null; param = param.next) {
+			Node rhs = arg;
+			arg = arg.next;
+			rhs.next = null;
+
+			Node var = new Node();
+			var.kind = Node.Kind.VAR;
+			var.token = call.token;
+			var.var = copies.get(param);
+			var.ty = param.ty;
+
+			Node assign = new Node();
+			assign.kind = Node.Kind.ASSIGN;
+			assign.token = call.token;
+			assign.lhs = var;
+			assign.rhs = rhs;
+			assign.ty = param.ty;
+
+			Node stmt = new Node();
+			stmt.kind = Node.Kind.EXPR_STMT;
+			stmt.token = call.token;
+			stmt.lhs = assign;
+			cur = cur.next = stmt;
+		}
+		cur.next = copy(callee.body);
+
+		Node node = new Node();
+		node.kind = Node.Kind.INLINE;
+		node.token = call.token;
+		node.ty = call.ty;
+		node.funcname = callee.name;
+		node.body = head.next;
+		return node;
+	}
+
+	// Deep copy of `node` with the callee's locals replaced by their
+	// copies.
+	private Node copy(Node node) {
+		if (node == null) return null;
+
+		Node n = new Node();
+		n.kind = node.kind;
+		n.ty = node.ty;
+		n.token = node.token;
+		n.lhs = copy(node.lhs);
+		n.rhs = copy(node.rhs);
+		n.cond = copy(node.cond);
+		n.then = copy(node.then);
+		n.els = copy(node.els);
+		n.init = copy(node.init);
+		n.inc = copy(node.inc);
+		n.body = copy_list(node.body);
+		if (node.decls != null) {
+			n.decls = new ArrayList<>();
+			for (Obj var : node.decls)
+				n.decls.add(copies.get(var));
+		}
+		n.funcname = node.funcname;
+		n.args = copy_list(node.args);
+		n.var = node.var != null && node.var.is_local ? copies.get(node.var) : node.var;
+		n.val = node.val;
+		n.lanes = node.lanes;
+		return n;
+	}
+
+	private Node copy_list(Node node) {
+		Node head = new Node();
+		Node cur = head;
+		for (Node n = node; n != null; n = n.next)
+			cur = cur.next = copy(n);
+		return head.next;
+	}
+
+	// The number of AST nodes in `node`, a measure of its code size.
+	static int size(Node node) {
+		if (node == null) return 0;
+		int n = 1 + size(node.lhs) + size(node.rhs) + size(node.cond) + size(node.then)
+				+ size(node.els) + size(node.init) + size(node.inc);
+		for (Node c = node.body; c != null; c = c.next)
+			n += size(c);
+		for (Node c = node.args; c != null; c = c.next)
+			n += size(c);
+		return n;
+	}
+}
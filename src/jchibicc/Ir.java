@@ -0,0 +1,161 @@
+package jchibicc;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Mid-level intermediate representation of a function.
+//
+// A function is a list of basic blocks. A block is a list of
+// three-address instructions that ends in exactly one terminator (jmp,
+// br or ret), and knows its predecessors and successors, so the
+// control flow graph is explicit.
+//
+// The IR is in SSA form: every instruction that produces a value is
+// that value, and it is assigned nowhere else. Scalar locals whose
+// address is never taken are not in memory at all: each assignment
+// is a new value, and where control flow merges, a phi instruction at
+// the top of the block picks the value that came in on each edge.
+// Arrays, globals and locals whose address is taken are accessed with
+// explicit load and store instructions.
+//
+// See IrBuilder for the construction from the AST and IrLower for the
+// translation to x86-64.
+class Ir {
+
+	enum Op {
+		PARAM,       // val-th parameter
+		CONST,       // Integer val
+		UNDEF,       // Value of a variable read before it was assigned
+		PHI,         // One argument per predecessor, in block.preds order
+		ADD,
+		SUB,
+		MUL,
+		DIV,
+		NEG,
+		EQ,
+		NE,
+		LT,
+		LE,
+		SEXT8,       // Sign-extend the low byte, for assignments to a char
+		ADDR_LOCAL,  // Address of var in the frame
+		ADDR_GLOBAL, // Address of global var
+		LOAD,        // Load val bytes (sign-extended) from args[0]
+		STORE,       // Store the low val bytes of args[1] to args[0]
+		CALL,        // Call function `name` with args
+		JMP,         // Jump to targets[0]
+		BR,          // If args[0] != 0 jump to targets[0], else targets[1]
+		RET,         // Return args[0], if any
+	}
+
+	static class Insn {
+		Op op;
+		int id = -1;   // Value number, -1 if the instruction has no value
+		Block block;
+		Insn[] args = NO_ARGS;
+		long val;
+		Obj var;
+		String name;
+		Block[] targets;
+
+		boolean has_value() {
+			return id >= 0;
+		}
+
+		boolean is_terminator() {
+			return op == Op.JMP || op == Op.BR || op == Op.RET;
+		}
+	}
+
+	static final Insn[] NO_ARGS = {};
+
+	static class Block {
+		int id;
+		final List<Insn> insns = new ArrayList<>();
+		final List<Block> preds = new ArrayList<>();
+		final List<Block> succs = new ArrayList<>();
+
+		// SSA construction state, see IrBuilder
+		final Map<Obj, Insn> defs = new IdentityHashMap<>();
+		final Map<Obj, Insn> incomplete_phis = new IdentityHashMap<>();
+		boolean sealed;
+
+		Block(int id) {
+			this.id = id;
+		}
+
+		Insn terminator() {
+			if (insns.isEmpty()) return null;
+			Insn last = insns.get(insns.size() - 1);
+			return last.is_terminator() ? last : null;
+		}
+	}
+
+	final Obj fn;
+	final List<Block> blocks = new ArrayList<>();
+	int nvalues;
+
+	Ir(Obj fn) {
+		this.fn = fn;
+	}
+
+	// Writes the IR in a form like
+	//
+	//   main:
+	//   b0:
+	//     %0 = param 0
+	//     %1 = const 1
+	//     br %0, b1, b2
+	//   b1: ; preds b0
+	//     ...
+	void dump(AsmWriter out) {
+		out.label(fn.name);
+		for (Block b : blocks) {
+			out.ch('b').num(b.id).ch(':');
+			for (int i = 0; i < b.preds.size(); i++)
+				out.str(i == 0 ? " ; preds b" : ", b").num(b.preds.get(i).id);
+			out.ch('\n');
+
+			for (Insn insn : b.insns)
+				dump(out, insn);
+		}
+	}
+
+	private static void dump(AsmWriter out, Insn insn) {
+		out.str("  ");
+		if (insn.has_value()) out.ch('%').num(insn.id).str(" = ");
+		out.str(insn.op.name().toLowerCase());
+
+		switch (insn.op) {
+		case PARAM:
+		case CONST:
+			out.ch(' ').num(insn.val);
+			break;
+		case LOAD:
+		case STORE:
+			out.ch(' ').num(insn.val).ch(',');
+			break;
+		case ADDR_LOCAL:
+		case ADDR_GLOBAL:
+			out.ch(' ').str(insn.var.name);
+			break;
+		case CALL:
+			out.ch(' ').str(insn.name);
+			break;
+		default:
+			break;
+		}
+
+		for (int i = 0; i < insn.args.length; i++) {
+			out.str(i == 0 ? " " : ", ");
+			if (insn.op == Op.PHI) out.ch('[');
+			out.ch('%').num(insn.args[i].id);
+			if (insn.op == Op.PHI) out.str(", b").num(insn.block.preds.get(i).id).ch(']');
+		}
+		if (insn.targets != null)
+			for (int i = 0; i < insn.targets.length; i++)
+				out.str(i == 0 && insn.args.length == 0 ? " b" : ", b").num(insn.targets[i].id);
+		out.ch('\n');
+	}
+}
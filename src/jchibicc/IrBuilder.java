@@ -0,0 +1,478 @@
+package jchibicc;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Builds the SSA IR of a function from its AST.
+//
+// SSA form is constructed on the fly while the AST is walked, after
+// Braun et al., "Simple and Efficient Construction of Static Single
+// Assignment Form". The current value of each register variable is
+// recorded per block. Reading a variable in a block that does not
+// define it asks the predecessors, placing a phi where they may
+// disagree. A block is sealed once all of its predecessors are known;
+// phis needed in a block that is not sealed yet (a loop header while
+// its body is built) are completed when it is sealed. Phis that turn
+// out to merge a single value are removed at the end.
+class IrBuilder {
+
+	private final Ir ir;
+	private Ir.Block cur;
+
+	// Inside an INLINE node, a return assigns `inline_result` and jumps
+	// to `inline_end`. The result is a variable of its own, so the
+	// values of different returns meet in a phi.
+	private Ir.Block inline_end;
+	private Obj inline_result;
+
+	// Locals that live in SSA values rather than in the frame.
+	private final boolean[] in_ssa;
+	private final Map<Obj, Integer> var_index = new IdentityHashMap<>();
+
+	private IrBuilder(Obj fn) {
+		ir = new Ir(fn);
+
+		// The address of a scalar local lets pointer arithmetic reach
+		// all of the frame; keep it in memory then (see Assembly).
+		boolean frame_in_memory = Assembly.takes_local_address(fn.body);
+		int n = 0;
+		for (Obj var = fn.locals; var != null; var = var.next)
+			var_index.put(var, n++);
+		in_ssa = new boolean[n];
+		for (Obj var = fn.locals; var != null; var = var.next)
+			in_ssa[var_index.get(var)] = !frame_in_memory && var.ty.kind != Type.Kind.ARRAY;
+	}
+
+	static Ir build(Obj fn) {
+		IrBuilder b = new IrBuilder(fn);
+		b.function(fn);
+		return b.ir;
+	}
+
+	private boolean is_ssa(Obj var) {
+		return var.is_local && in_ssa[var_index.get(var)];
+	}
+
+	//
+	// Blocks and instructions
+	//
+
+	private Ir.Block new_block() {
+		Ir.Block b = new Ir.Block(ir.blocks.size());
+		ir.blocks.add(b);
+		return b;
+	}
+
+	private Ir.Insn emit(Ir.Op op, Ir.Insn... args) {
+		Ir.Insn insn = new Ir.Insn();
+		insn.op = op;
+		insn.args = args;
+		insn.block = cur;
+		if (op != Ir.Op.STORE && op != Ir.Op.JMP && op != Ir.Op.BR && op != Ir.Op.RET)
+			insn.id = ir.nvalues++;
+		cur.insns.add(insn);
+		return insn;
+	}
+
+	private Ir.Insn emit_const(long val) {
+		Ir.Insn insn = emit(Ir.Op.CONST);
+		insn.val = val;
+		return insn;
+	}
+
+	private void add_edge(Ir.Block from, Ir.Block to) {
+		from.succs.add(to);
+		to.preds.add(from);
+	}
+
+	private void jmp(Ir.Block to) {
+		Ir.Insn insn = emit(Ir.Op.JMP);
+		insn.targets = new Ir.Block[] {to};
+		add_edge(cur, to);
+	}
+
+	private void br(Ir.Insn cond, Ir.Block then, Ir.Block els) {
+		Ir.Insn insn = emit(Ir.Op.BR, cond);
+		insn.targets = new Ir.Block[] {then, els};
+		add_edge(cur, then);
+		add_edge(cur, els);
+	}
+
+	//
+	// SSA construction
+	//
+
+	private void write_var(Obj var, Ir.Block b, Ir.Insn val) {
+		b.defs.put(var, val);
+	}
+
+	private Ir.Insn read_var(Obj var, Ir.Block b) {
+		Ir.Insn val = b.defs.get(var);
+		if (val != null) return val;
+
+		if (!b.sealed) {
+			// Not all predecessors are known yet.
+			val = new_phi(b);
+			b.incomplete_phis.put(var, val);
+		} else if (b.preds.size() == 1) {
+			val = read_var(var, b.preds.get(0));
+		} else if (b.preds.isEmpty()) {
+			val = new_undef(b);
+		} else {
+			// Break cycles through loops with an operandless phi.
+			val = new_phi(b);
+			write_var(var, b, val);
+			add_phi_operands(var, val);
+		}
+		write_var(var, b, val);
+		return val;
+	}
+
+	private Ir.Insn new_phi(Ir.Block b) {
+		Ir.Insn phi = new Ir.Insn();
+		phi.op = Ir.Op.PHI;
+		phi.block = b;
+		phi.id = ir.nvalues++;
+		b.insns.add(0, phi);
+		return phi;
+	}
+
+	private Ir.Insn new_undef(Ir.Block b) {
+		Ir.Insn undef = new Ir.Insn();
+		undef.op = Ir.Op.UNDEF;
+		undef.block = b;
+		undef.id = ir.nvalues++;
+		b.insns.add(0, undef);
+		return undef;
+	}
+
+	private void add_phi_operands(Obj var, Ir.Insn phi) {
+		Ir.Insn[] args = new Ir.Insn[phi.block.preds.size()];
+		for (int i = 0; i < args.length; i++)
+			args[i] = read_var(var, phi.block.preds.get(i));
+		phi.args = args;
+	}
+
+	private void seal(Ir.Block b) {
+		b.sealed = true;
+		for (Map.Entry<Obj, Ir.Insn> e : b.incomplete_phis.entrySet())
+			add_phi_operands(e.getKey(), e.getValue());
+		b.incomplete_phis.clear();
+	}
+
+	private Ir.Block new_sealed_block() {
+		Ir.Block b = new_block();
+		b.sealed = true;
+		return b;
+	}
+
+	//
+	// Statements and expressions
+	//
+
+	private void function(Obj fn) {
+		cur = new_sealed_block();
+
+		int i = 0;
+		for (Obj var = fn.params; var != null; var = var.next, i++) {
+			Ir.Insn param = emit(Ir.Op.PARAM);
+			param.val = i;
+			if (var.ty.size == 1) param = emit(Ir.Op.SEXT8, param);
+
+			if (is_ssa(var)) {
+				write_var(var, cur, param);
+			} else {
+				Ir.Insn store = emit(Ir.Op.STORE, addr_local(var), param);
+				store.val = var.ty.size;
+			}
+		}
+
+		gen_stmt(fn.body);
+
+		// Falling off the end returns whatever happens to be in %rax.
+		if (cur.terminator() == null) emit(Ir.Op.RET);
+
+		cleanup();
+	}
+
+	private void gen_stmt(Node node) {
+		switch (node.kind) {
+		case IF: {
+			Ir.Insn cond = gen_expr(node.cond);
+			Ir.Block then = new_block();
+			Ir.Block els = node.els != null ? new_block() : null;
+			Ir.Block join = new_block();
+			if (els == null) els = join;
+			br(cond, then, els);
+			seal(then);
+
+			cur = then;
+			gen_stmt(node.then);
+			jmp(join);
+
+			if (els != join) {
+				seal(els);
+				cur = els;
+				gen_stmt(node.els);
+				jmp(join);
+			}
+
+			seal(join);
+			cur = join;
+			return;
+		}
+		case FOR: {
+			if (node.init != null) gen_stmt(node.init);
+
+			Ir.Block header = new_block();
+			Ir.Block body = new_block();
+			Ir.Block exit = new_block();
+			jmp(header);
+
+			cur = header;
+			if (node.cond != null) br(gen_expr(node.cond), body, exit);
+			else jmp(body);
+			seal(body);
+			seal(exit);
+
+			cur = body;
+			gen_stmt(node.then);
+			if (node.inc != null) gen_expr(node.inc);
+			jmp(header);
+			seal(header);
+
+			cur = exit;
+			return;
+		}
+		case BLOCK:
+			for (Node n = node.body; n != null; n = n.next)
+				gen_stmt(n);
+			return;
+		case RETURN:
+			if (inline_end != null) {
+				write_var(inline_result, cur, gen_expr(node.lhs));
+				jmp(inline_end);
+				cur = new_sealed_block();
+				return;
+			}
+			emit(Ir.Op.RET, gen_expr(node.lhs));
+			// Whatever follows is unreachable.
+			cur = new_sealed_block();
+			return;
+		case EXPR_STMT:
+			gen_expr(node.lhs);
+			return;
+		default:
+			break;
+		}
+		S.error_tok(node.token, "invalid statement");
+	}
+
+	private Ir.Insn addr_local(Obj var) {
+		Ir.Insn insn = emit(Ir.Op.ADDR_LOCAL);
+		insn.var = var;
+		return insn;
+	}
+
+	private Ir.Insn gen_addr(Node node) {
+		switch (node.kind) {
+		case VAR:
+			if (node.var.is_local) return addr_local(node.var);
+			Ir.Insn insn = emit(Ir.Op.ADDR_GLOBAL);
+			insn.var = node.var;
+			return insn;
+		case DEREF:
+			return gen_expr(node.lhs);
+		default:
+			break;
+		}
+		S.error_tok(node.token, "not an lvalue");
+		return null;
+	}
+
+	// Arrays are not loaded: their value is their address.
+	private Ir.Insn load(Type ty, Ir.Insn addr) {
+		if (ty.kind == Type.Kind.ARRAY) return addr;
+		Ir.Insn insn = emit(Ir.Op.LOAD, addr);
+		insn.val = ty.size;
+		return insn;
+	}
+
+	private Ir.Insn gen_expr(Node node) {
+		switch (node.kind) {
+		case NUM:
+			return emit_const(node.val);
+		case VAR:
+			if (is_ssa(node.var)) return read_var(node.var, cur);
+			return load(node.ty, gen_addr(node));
+		case DEREF:
+			return load(node.ty, gen_expr(node.lhs));
+		case ADDR:
+			return gen_addr(node.lhs);
+		case NEG:
+			return emit(Ir.Op.NEG, gen_expr(node.lhs));
+		case ASSIGN: {
+			if (node.lhs.kind == Node.Kind.VAR && is_ssa(node.lhs.var)) {
+				Ir.Insn val = gen_expr(node.rhs);
+				write_var(node.lhs.var, cur, node.ty.size == 1 ? emit(Ir.Op.SEXT8, val) : val);
+				return val;
+			}
+			Ir.Insn addr = gen_addr(node.lhs);
+			Ir.Insn val = gen_expr(node.rhs);
+			Ir.Insn store = emit(Ir.Op.STORE, addr, val);
+			store.val = node.ty.size;
+			return val;
+		}
+		case FUNCALL: {
+			List<Ir.Insn> args = new ArrayList<>();
+			for (Node arg = node.args; arg != null; arg = arg.next)
+				args.add(gen_expr(arg));
+			Ir.Insn call = emit(Ir.Op.CALL, args.toArray(Ir.NO_ARGS));
+			call.name = node.funcname;
+			return call;
+		}
+		case INLINE: {
+			Ir.Block outer_end = inline_end;
+			Obj outer_result = inline_result;
+			Ir.Block end = new_block();
+			inline_end = end;
+			inline_result = new Obj();
+			for (Node n = node.body; n != null; n = n.next)
+				gen_stmt(n);
+			jmp(end);
+			seal(end);
+			cur = end;
+			Ir.Insn val = read_var(inline_result, end);
+			inline_end = outer_end;
+			inline_result = outer_result;
+			return val;
+		}
+		default:
+			break;
+		}
+
+		Ir.Insn lhs = gen_expr(node.lhs);
+		Ir.Insn rhs = gen_expr(node.rhs);
+		switch (node.kind) {
+		case ADD: return emit(Ir.Op.ADD, lhs, rhs);
+		case SUB: return emit(Ir.Op.SUB, lhs, rhs);
+		case MUL: return emit(Ir.Op.MUL, lhs, rhs);
+		case DIV: return emit(Ir.Op.DIV, lhs, rhs);
+		case EQ: return emit(Ir.Op.EQ, lhs, rhs);
+		case NE: return emit(Ir.Op.NE, lhs, rhs);
+		case LT: return emit(Ir.Op.LT, lhs, rhs);
+		case LE: return emit(Ir.Op.LE, lhs, rhs);
+		default: break;
+		}
+		S.error_tok(node.token, "invalid expression");
+		return null;
+	}
+
+	//
+	// Cleanup
+	//
+
+	// Drops the blocks that cannot be reached (code after a return),
+	// removes trivial phis and numbers the values densely.
+	private void cleanup() {
+		boolean[] reachable = new boolean[ir.blocks.size()];
+		List<Ir.Block> work = new ArrayList<>();
+		work.add(ir.blocks.get(0));
+		reachable[0] = true;
+		while (!work.isEmpty()) {
+			Ir.Block b = work.remove(work.size() - 1);
+			for (Ir.Block s : b.succs)
+				if (!reachable[s.id]) {
+					reachable[s.id] = true;
+					work.add(s);
+				}
+		}
+
+		List<Ir.Block> live = new ArrayList<>();
+		for (Ir.Block b : ir.blocks) {
+			if (!reachable[b.id]) continue;
+			live.add(b);
+
+			// Forget the edges from unreachable blocks, and the phi
+			// operands that came in on them.
+			for (int i = b.preds.size() - 1; i >= 0; i--) {
+				if (reachable[b.preds.get(i).id]) continue;
+				b.preds.remove(i);
+				for (Ir.Insn insn : b.insns)
+					if (insn.op == Ir.Op.PHI) insn.args = remove(insn.args, i);
+			}
+		}
+		ir.blocks.clear();
+		ir.blocks.addAll(live);
+
+		remove_trivial_phis();
+
+		// Renumber blocks and values in layout order.
+		int nblocks = 0;
+		int nvalues = 0;
+		for (Ir.Block b : ir.blocks) {
+			b.defs.clear();
+			b.id = nblocks++;
+			for (Ir.Insn insn : b.insns)
+				if (insn.has_value()) insn.id = nvalues++;
+		}
+		ir.nvalues = nvalues;
+	}
+
+	private static Ir.Insn[] remove(Ir.Insn[] args, int i) {
+		Ir.Insn[] ret = new Ir.Insn[args.length - 1];
+		System.arraycopy(args, 0, ret, 0, i);
+		System.arraycopy(args, i + 1, ret, i, args.length - i - 1);
+		return ret;
+	}
+
+	// A phi whose operands are all the same value v, or itself, is v.
+	// Replacing one may make others trivial, so repeat until nothing
+	// changes, then rewrite every operand.
+	private void remove_trivial_phis() {
+		Map<Ir.Insn, Ir.Insn> replace = new IdentityHashMap<>();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Ir.Block b : ir.blocks)
+				for (Ir.Insn phi : b.insns) {
+					if (phi.op != Ir.Op.PHI || replace.containsKey(phi)) continue;
+
+					Ir.Insn same = null;
+					boolean trivial = true;
+					for (Ir.Insn arg : phi.args) {
+						arg = resolve(replace, arg);
+						if (arg == phi || arg == same) continue;
+						if (same != null) {
+							trivial = false;
+							break;
+						}
+						same = arg;
+					}
+					if (!trivial) continue;
+
+					// A phi of nothing but itself is only reached
+					// through unassigned variables.
+					if (same == null) same = new_undef(ir.blocks.get(0));
+					replace.put(phi, same);
+					changed = true;
+				}
+		}
+
+		if (replace.isEmpty()) return;
+		for (Ir.Block b : ir.blocks) {
+			b.insns.removeIf(replace::containsKey);
+			for (Ir.Insn insn : b.insns)
+				for (int i = 0; i < insn.args.length; i++)
+					insn.args[i] = resolve(replace, insn.args[i]);
+		}
+	}
+
+	private static Ir.Insn resolve(Map<Ir.Insn, Ir.Insn> replace, Ir.Insn insn) {
+		for (Ir.Insn r; (r = replace.get(insn)) != null;)
+			insn = r;
+		return insn;
+	}
+}
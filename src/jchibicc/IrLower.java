@@ -0,0 +1,240 @@
+package jchibicc;
+
+// Translates the SSA IR of a function to x86-64.
+//
+// This is the straightforward lowering: every value gets an 8-byte
+// slot in the frame below the locals that stay in memory, and each
+// instruction loads its operands into %rax and %rdi, computes, and
+// stores %rax to its own slot. Constants are not given slots but
+// become immediate moves where they are used.
+//
+// A phi is assigned at the end of each predecessor. All of a block's
+// phis take their values at once, so the copies on an edge go through
+// the stack. When a conditional branch leads to a block with phis, the
+// copies are placed on a separate path for that edge.
+//
+// A call whose value is returned right away leaves the frame and jumps
+// to the callee, like Assembly.gen_tail_call() does.
+class IrLower {
+
+	private static final String argreg64[] = {"%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"};
+
+	private final Code out;
+	private final Ir ir;
+	private final String fn;
+	private final String return_label;
+	private final int frame_size;
+	private final boolean tail_calls;
+	private int nedges;
+
+	private IrLower(Code out, Ir ir, boolean tail_calls) {
+		this.out = out;
+		this.ir = ir;
+		this.tail_calls = tail_calls;
+		this.fn = ir.fn.name;
+		this.return_label = ".L.return." + fn;
+		this.frame_size = (ir.fn.stack_size + ir.nvalues * 8 + 15) / 16 * 16;
+	}
+
+	static void emit_function(Code out, Obj fn, Options opt) {
+		new IrLower(out, IrBuilder.build(fn), opt.tail_calls && !Assembly.has_addressable_locals(fn)).emit();
+	}
+
+	// Slots of values are below those of the locals.
+	private int slot(Ir.Insn insn) {
+		return -ir.fn.stack_size - (insn.id + 1) * 8;
+	}
+
+	private void operand(Ir.Insn insn, String reg) {
+		if (insn.op == Ir.Op.CONST) out.ins_imm("mov", insn.val, reg);
+		else out.ins_load("mov", slot(insn), "%rbp", reg);
+	}
+
+	private void result(Ir.Insn insn) {
+		out.ins_store("mov", "%rax", slot(insn), "%rbp");
+	}
+
+	private void emit() {
+		out.directive(".globl", fn);
+		out.directive(".text");
+		out.label(fn);
+
+		// Prologue
+		out.ins("push", "%rbp");
+		out.ins("mov", "%rsp", "%rbp");
+		out.ins_imm("sub", frame_size, "%rsp");
+
+		for (int i = 0; i < ir.blocks.size(); i++) {
+			Ir.Block b = ir.blocks.get(i);
+			Ir.Block next = i + 1 < ir.blocks.size() ? ir.blocks.get(i + 1) : null;
+			out.label("b", fn, b.id);
+			for (int j = 0; j < b.insns.size(); j++) {
+				Ir.Insn insn = b.insns.get(j);
+				if (tail_calls && j + 1 < b.insns.size() && is_tail_call(insn, b.insns.get(j + 1))) {
+					emit_tail_call(insn);
+					j++;
+					continue;
+				}
+				emit(insn, next);
+			}
+		}
+
+		// Epilogue
+		out.label(return_label);
+		out.ins("mov", "%rbp", "%rsp");
+		out.ins("pop", "%rbp");
+		out.ins("ret");
+	}
+
+	private void emit(Ir.Insn insn, Ir.Block next) {
+		switch (insn.op) {
+		case CONST:
+		case UNDEF:
+		case PHI:
+			return;
+		case PARAM:
+			if (insn.val < argreg64.length)
+				out.ins_store("mov", argreg64[(int) insn.val], slot(insn), "%rbp");
+			return;
+		case ADDR_LOCAL:
+			out.ins_load("lea", insn.var.offset, "%rbp", "%rax");
+			result(insn);
+			return;
+		case ADDR_GLOBAL:
+			out.ins_rip("lea", insn.var.name, "%rax");
+			result(insn);
+			return;
+		case LOAD:
+			operand(insn.args[0], "%rax");
+			out.ins_load(insn.val == 1 ? "movsbq" : "mov", 0, "%rax", "%rax");
+			result(insn);
+			return;
+		case STORE:
+			operand(insn.args[0], "%rdi");
+			operand(insn.args[1], "%rax");
+			out.ins_store("mov", insn.val == 1 ? "%al" : "%rax", 0, "%rdi");
+			return;
+		case SEXT8:
+			operand(insn.args[0], "%rax");
+			out.ins("movsbq", "%al", "%rax");
+			result(insn);
+			return;
+		case NEG:
+			operand(insn.args[0], "%rax");
+			out.ins("neg", "%rax");
+			result(insn);
+			return;
+		case CALL:
+			for (int i = 0; i < insn.args.length; i++)
+				operand(insn.args[i], argreg64[i]);
+			out.ins_imm("mov", 0, "%rax");
+			out.ins("call", insn.name);
+			result(insn);
+			return;
+		case JMP:
+			copy_phis(insn.block, insn.targets[0]);
+			if (insn.targets[0] != next)
+				out.ins_jump("jmp", "b", fn, insn.targets[0].id);
+			return;
+		case BR: {
+			Ir.Block then = insn.targets[0];
+			Ir.Block els = insn.targets[1];
+			operand(insn.args[0], "%rax");
+			out.ins_imm("cmp", 0, "%rax");
+			if (!has_phis(then) && !has_phis(els)) {
+				out.ins_jump("je", "b", fn, els.id);
+				if (then != next) out.ins_jump("jmp", "b", fn, then.id);
+				return;
+			}
+			int edge = nedges++;
+			out.ins_jump("je", "edge", fn, edge);
+			copy_phis(insn.block, then);
+			out.ins_jump("jmp", "b", fn, then.id);
+			out.label("edge", fn, edge);
+			copy_phis(insn.block, els);
+			if (els != next) out.ins_jump("jmp", "b", fn, els.id);
+			return;
+		}
+		case RET:
+			if (insn.args.length > 0) operand(insn.args[0], "%rax");
+			if (next != null) out.ins("jmp", return_label);
+			return;
+		default:
+			break;
+		}
+
+		// Binary operators
+		operand(insn.args[0], "%rax");
+		operand(insn.args[1], "%rdi");
+		switch (insn.op) {
+		case ADD:
+			out.ins("add", "%rdi", "%rax");
+			break;
+		case SUB:
+			out.ins("sub", "%rdi", "%rax");
+			break;
+		case MUL:
+			out.ins("imul", "%rdi", "%rax");
+			break;
+		case DIV:
+			out.ins("cqo");
+			out.ins("idiv", "%rdi");
+			break;
+		case EQ:
+		case NE:
+		case LT:
+		case LE:
+			out.ins("cmp", "%rdi", "%rax");
+			out.ins(insn.op == Ir.Op.EQ ? "sete" : insn.op == Ir.Op.NE ? "setne"
+					: insn.op == Ir.Op.LT ? "setl" : "setle", "%al");
+			out.ins("movzb", "%al", "%rax");
+			break;
+		default:
+			throw new AssertionError(insn.op);
+		}
+		result(insn);
+	}
+
+	// Whether `call` is followed by the return of its value.
+	private static boolean is_tail_call(Ir.Insn call, Ir.Insn ret) {
+		return call.op == Ir.Op.CALL && ret.op == Ir.Op.RET && ret.args.length == 1 && ret.args[0] == call;
+	}
+
+	// The arguments are loaded from the slots before the frame is gone.
+	private void emit_tail_call(Ir.Insn insn) {
+		for (int i = 0; i < insn.args.length; i++)
+			operand(insn.args[i], argreg64[i]);
+		out.ins("mov", "%rbp", "%rsp");
+		out.ins("pop", "%rbp");
+		out.ins_imm("mov", 0, "%rax");
+		out.ins("jmp", insn.name);
+	}
+
+	private static boolean has_phis(Ir.Block b) {
+		for (Ir.Insn insn : b.insns)
+			if (insn.op == Ir.Op.PHI) return true;
+		return false;
+	}
+
+	// Assigns the phis of `to` the values they take on the edge from
+	// `from`. One phi may read another, so all operands are read before
+	// any phi is written.
+	private void copy_phis(Ir.Block from, Ir.Block to) {
+		int pred = to.preds.indexOf(from);
+		int n = 0;
+		for (Ir.Insn phi : to.insns) {
+			if (phi.op != Ir.Op.PHI) continue;
+			operand(phi.args[pred], "%rax");
+			out.ins("push", "%rax");
+			n++;
+		}
+		for (int i = to.insns.size() - 1; i >= 0; i--) {
+			Ir.Insn phi = to.insns.get(i);
+			if (phi.op != Ir.Op.PHI) continue;
+			out.ins("pop", "%rax");
+			result(phi);
+			n--;
+		}
+		assert n == 0;
+	}
+}
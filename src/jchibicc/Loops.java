@@ -0,0 +1,459 @@
+package jchibicc;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Loop optimizations on FOR nodes.
+//
+// Loop-invariant code motion: a subexpression of a loop whose operands
+// do not change while the loop runs is computed once, into a new local,
+// in a preheader in front of the loop. Only computations that cannot
+// trap or read memory are moved, because the preheader runs even if
+// the loop does not, and only those that cost more than what an
+// addressing mode or an immediate operand would absorb anyway.
+//
+// Induction variables: when a loop steps a variable i by a constant
+// c in its "inc" and nowhere else, an address base + i*s with an
+// invariant base is kept in a pointer that starts at base + i*s and
+// advances by c*s per iteration. This is done for the scales that the
+// addressing modes do not cover (1, 2, 4 and 8 are free already), such
+// as the rows of a two-dimensional array.
+//
+// The preheader goes after the loop's "init", so the loop becomes
+//
+//   { init; t1 = ...; p1 = ...; for (; cond; inc) { body; p1 = p1 + c*s; } }
+//
+// Functions that take the address of a scalar local are left alone,
+// since a store through a pointer could change any local. Global
+// scalars are never taken as invariant, as a call may change them.
+//
+// Assembly rotates every loop so that its condition is tested at the
+// bottom, see gen_stmt().
+class Loops {
+
+	private final Obj fn;
+	private final Type.Table types;
+	private int ntemps;
+
+	// State of the loop being optimized.
+	private Map<Obj, Integer> assigned;
+	private List<Node> preheader;
+	private List<Node[]> hoisted; // {expression, variable}
+
+	private Loops(Obj fn, Type.Table types) {
+		this.fn = fn;
+		this.types = types;
+	}
+
+	// `types` is the compilation's type table, for the temporaries.
+	static void optimize(Obj prog, Type.Table types) {
+		for (Obj fn = prog; fn != null; fn = fn.next)
+			if (fn.is_function && !Assembly.takes_local_address(fn.body))
+				fn.body = new Loops(fn, types).stmt(fn.body);
+	}
+
+	// Optimizes the loops in the statement `node`, the innermost ones
+	// first, and returns the node that replaces it.
+	private Node stmt(Node node) {
+		if (node == null) return null;
+		switch (node.kind) {
+		case BLOCK: {
+			Node head = new Node();
+			Node cur = head;
+			for (Node n = node.body; n != null;) {
+				Node next = n.next;
+				cur = cur.next = stmt(n);
+				cur.next = null;
+				n = next;
+			}
+			node.body = head.next;
+			return node;
+		}
+		case IF:
+			inline_loops(node.cond);
+			node.then = stmt(node.then);
+			node.els = stmt(node.els);
+			return node;
+		case FOR:
+			node.init = stmt(node.init);
+			inline_loops(node.cond);
+			inline_loops(node.inc);
+			node.then = stmt(node.then);
+			return loop(node);
+		default:
+			inline_loops(node.lhs);
+			return node;
+		}
+	}
+
+	// Loops in the bodies of inlined calls.
+	private void inline_loops(Node node) {
+		if (node == null) return;
+		if (node.kind == Node.Kind.INLINE) {
+			node.body = stmt(block(node.body, node)).body;
+			return;
+		}
+		inline_loops(node.lhs);
+		inline_loops(node.rhs);
+		for (Node n = node.args; n != null; n = n.next)
+			inline_loops(n);
+	}
+
+	private Node loop(Node node) {
+		// The body of a vectorized loop must stay as Vectorize left it.
+		if (node.lanes != 0) return node;
+
+		assigned = new IdentityHashMap<>();
+		find_assigns(node.cond);
+		find_assigns(node.then);
+		find_assigns(node.inc);
+		preheader = new ArrayList<>();
+		hoisted = new ArrayList<>();
+
+		reduce_induction_variable(node);
+
+		node.cond = hoist(node.cond);
+		hoist_stmt(node.then);
+		node.inc = hoist(node.inc);
+
+		if (preheader.isEmpty()) return node;
+
+		// { init; preheader; for (; cond; inc) body }
+		Node head = new Node();
+		Node cur = head;
+		if (node.init != null) cur = cur.next = node.init;
+		node.init = null;
+		for (Node n : preheader)
+			cur = cur.next = n;
+		cur.next = node;
+		node.next = null;
+		return block(head.next, node);
+	}
+
+	//
+	// Induction variables
+	//
+
+	private void reduce_induction_variable(Node node) {
+		// inc is i = i + c, i = c + i or i = i - c.
+		Node inc = node.inc;
+		if (inc == null || inc.kind != Node.Kind.ASSIGN || inc.lhs.kind != Node.Kind.VAR) return;
+		Obj iv = inc.lhs.var;
+		if (!iv.is_local || iv.ty.kind != Type.Kind.INT || assigned.getOrDefault(iv, 0) != 1) return;
+
+		Node rhs = inc.rhs;
+		long step;
+		if (rhs.kind == Node.Kind.ADD && is_var(rhs.lhs, iv) && rhs.rhs.kind == Node.Kind.NUM)
+			step = rhs.rhs.val;
+		else if (rhs.kind == Node.Kind.ADD && is_var(rhs.rhs, iv) && rhs.lhs.kind == Node.Kind.NUM)
+			step = rhs.lhs.val;
+		else if (rhs.kind == Node.Kind.SUB && is_var(rhs.lhs, iv) && rhs.rhs.kind == Node.Kind.NUM)
+			step = -rhs.rhs.val;
+		else
+			return;
+
+		List<Node> updates = new ArrayList<>();
+		node.cond = reduce(node.cond, iv, step, updates);
+		reduce_stmt(node.then, iv, step, updates);
+		if (updates.isEmpty()) return;
+
+		// The pointers advance at the end of the body, before inc.
+		Node head = new Node();
+		Node cur = head.next = node.then;
+		node.then.next = null;
+		for (Node n : updates)
+			cur = cur.next = n;
+		node.then = block(head.next, node);
+	}
+
+	private void reduce_stmt(Node node, Obj iv, long step, List<Node> updates) {
+		if (node == null) return;
+		switch (node.kind) {
+		case BLOCK:
+			for (Node n = node.body; n != null; n = n.next)
+				reduce_stmt(n, iv, step, updates);
+			return;
+		case IF:
+			node.cond = reduce(node.cond, iv, step, updates);
+			reduce_stmt(node.then, iv, step, updates);
+			reduce_stmt(node.els, iv, step, updates);
+			return;
+		case FOR:
+			reduce_stmt(node.init, iv, step, updates);
+			node.cond = reduce(node.cond, iv, step, updates);
+			reduce_stmt(node.then, iv, step, updates);
+			node.inc = reduce(node.inc, iv, step, updates);
+			return;
+		default:
+			node.lhs = reduce(node.lhs, iv, step, updates);
+			return;
+		}
+	}
+
+	// Replaces base + iv*s in `node` by a pointer that is advanced
+	// along with iv.
+	private Node reduce(Node node, Obj iv, long step, List<Node> updates) {
+		if (node == null) return null;
+
+		if (node.kind == Node.Kind.ADD && node.lhs.ty.base != null && node.rhs.kind == Node.Kind.MUL
+				&& is_var(node.rhs.lhs, iv) && node.rhs.rhs.kind == Node.Kind.NUM
+				&& !is_scale(node.rhs.rhs.val) && is_invariant(node.lhs)) {
+			Node var = find_hoisted(node);
+			if (var != null) return var;
+
+			Obj p = fn.new_local(".iv." + ntemps++, temp_type(node.ty));
+			assigned.put(p, 1);
+			var = var(p, node);
+			hoisted.add(new Node[] {node, var});
+			preheader.add(assign(p, node));
+			updates.add(assign(p, add(var(p, node), num(step * node.rhs.rhs.val, node), node)));
+			return var(p, node);
+		}
+
+		node.lhs = reduce(node.lhs, iv, step, updates);
+		node.rhs = reduce(node.rhs, iv, step, updates);
+		return node;
+	}
+
+	private static boolean is_scale(long n) {
+		return n == 1 || n == 2 || n == 4 || n == 8;
+	}
+
+	//
+	// Loop-invariant code motion
+	//
+
+	private void hoist_stmt(Node node) {
+		if (node == null) return;
+		switch (node.kind) {
+		case BLOCK:
+			for (Node n = node.body; n != null; n = n.next)
+				hoist_stmt(n);
+			return;
+		case IF:
+			node.cond = hoist(node.cond);
+			hoist_stmt(node.then);
+			hoist_stmt(node.els);
+			return;
+		case FOR:
+			hoist_stmt(node.init);
+			node.cond = hoist(node.cond);
+			hoist_stmt(node.then);
+			node.inc = hoist(node.inc);
+			return;
+		default:
+			node.lhs = hoist(node.lhs);
+			return;
+		}
+	}
+
+	// Moves the largest invariant subexpressions of `node` that are
+	// worth it to the preheader.
+	private Node hoist(Node node) {
+		if (node == null) return null;
+
+		if (is_invariant(node) && is_costly(node)) {
+			Node var = find_hoisted(node);
+			if (var != null) return var;
+
+			Obj t = fn.new_local(".licm." + ntemps++, temp_type(node.ty));
+			hoisted.add(new Node[] {node, var(t, node)});
+			preheader.add(assign(t, node));
+			return var(t, node);
+		}
+
+		// The target of an assignment stays where it is; only the
+		// address computation in it may move.
+		if (node.kind == Node.Kind.ASSIGN) {
+			if (node.lhs.kind == Node.Kind.DEREF) node.lhs.lhs = hoist(node.lhs.lhs);
+		} else {
+			node.lhs = hoist(node.lhs);
+		}
+		node.rhs = hoist(node.rhs);
+
+		Node head = new Node();
+		Node cur = head;
+		for (Node n = node.args; n != null;) {
+			Node next = n.next;
+			n.next = null;
+			cur = cur.next = hoist(n);
+			n = next;
+		}
+		node.args = head.next;
+		return node;
+	}
+
+	// Returns a reference to the variable an equal expression was
+	// already moved to, if any.
+	private Node find_hoisted(Node node) {
+		for (Node[] h : hoisted)
+			if (same(h[0], node)) return var(h[1].var, node);
+		return null;
+	}
+
+	// Whether `node` has the same value everywhere in the loop and can
+	// be evaluated anywhere without trapping.
+	private boolean is_invariant(Node node) {
+		switch (node.kind) {
+		case NUM:
+			return true;
+		case VAR:
+			if (node.var.ty.kind == Type.Kind.ARRAY) return true;
+			return node.var.is_local && !assigned.containsKey(node.var);
+		case ADD:
+		case SUB:
+		case MUL:
+		case EQ:
+		case NE:
+		case LT:
+		case LE:
+			return is_invariant(node.lhs) && is_invariant(node.rhs);
+		case NEG:
+			return is_invariant(node.lhs);
+		case DIV:
+			// Neither by zero nor MIN_VALUE / -1.
+			return node.rhs.kind == Node.Kind.NUM && node.rhs.val != 0 && node.rhs.val != -1
+					&& is_invariant(node.lhs);
+		case DEREF:
+			// An array is not loaded; its value is its address.
+			return node.ty.kind == Type.Kind.ARRAY && is_invariant(node.lhs);
+		case ADDR:
+			if (node.lhs.kind == Node.Kind.DEREF) return is_invariant(node.lhs.lhs);
+			return node.lhs.kind == Node.Kind.VAR && node.lhs.var.ty.kind == Type.Kind.ARRAY;
+		default:
+			return false;
+		}
+	}
+
+	// Whether evaluating `node` takes more than an addressing mode or
+	// an immediate operand would do for free.
+	private static boolean is_costly(Node node) {
+		switch (node.kind) {
+		case MUL:
+			if (node.rhs.kind == Node.Kind.NUM && is_scale(node.rhs.val)) return is_costly(node.lhs);
+			return true;
+		case DIV:
+		case NEG:
+		case EQ:
+		case NE:
+		case LT:
+		case LE:
+			return true;
+		case ADD:
+		case SUB:
+			if (node.rhs.kind == Node.Kind.NUM) return is_costly(node.lhs);
+			if (node.lhs.kind == Node.Kind.NUM) return is_costly(node.rhs);
+			// ptr + idx*scale is what the addressing modes are for.
+			if (node.lhs.ty.base != null) return is_costly(node.lhs) || is_costly(node.rhs);
+			return true;
+		case DEREF:
+		case ADDR:
+			return is_costly(node.lhs);
+		default:
+			return false;
+		}
+	}
+
+	//
+	// Helpers
+	//
+
+	// Counts the assignments to each variable.
+	private void find_assigns(Node node) {
+		if (node == null) return;
+		if (node.kind == Node.Kind.ASSIGN && node.lhs.kind == Node.Kind.VAR)
+			assigned.merge(node.lhs.var, 1, Integer::sum);
+		find_assigns(node.lhs);
+		find_assigns(node.rhs);
+		find_assigns(node.cond);
+		find_assigns(node.then);
+		find_assigns(node.els);
+		find_assigns(node.init);
+		find_assigns(node.inc);
+		for (Node n = node.body; n != null; n = n.next)
+			find_assigns(n);
+		for (Node n = node.args; n != null; n = n.next)
+			find_assigns(n);
+	}
+
+	// Structural equality of expressions without effects.
+	private static boolean same(Node a, Node b) {
+		if (a == null || b == null) return a == b;
+		if (a.kind != b.kind) return false;
+		switch (a.kind) {
+		case NUM:
+			return a.val == b.val;
+		case VAR:
+			return a.var == b.var;
+		default:
+			return same(a.lhs, b.lhs) && same(a.rhs, b.rhs);
+		}
+	}
+
+	// The type of a variable to hold a value of type `ty`. An array
+	// stands for its address. Integers are held in full, like in
+	// registers: `c+1` of a char c is not truncated.
+	private Type temp_type(Type ty) {
+		if (ty.kind == Type.Kind.ARRAY) return types.pointer_to(ty.base);
+		if (ty.base != null) return ty;
+		return Type.ty_int;
+	}
+
+	private static boolean is_var(Node node, Obj var) {
+		return node.kind == Node.Kind.VAR && node.var == var;
+	}
+
+	private static Node var(Obj var, Node at) {
+		Node n = new Node();
+		n.kind = Node.Kind.VAR;
+		n.token = at.token;
+		n.var = var;
+		n.ty = var.ty;
+		return n;
+	}
+
+	private static Node num(long val, Node at) {
+		Node n = new Node();
+		n.kind = Node.Kind.NUM;
+		n.token = at.token;
+		n.val = val;
+		n.ty = Type.ty_int;
+		return n;
+	}
+
+	private static Node add(Node lhs, Node rhs, Node at) {
+		Node n = new Node();
+		n.kind = Node.Kind.ADD;
+		n.token = at.token;
+		n.lhs = lhs;
+		n.rhs = rhs;
+		n.ty = lhs.ty;
+		return n;
+	}
+
+	// var = val;
+	private static Node assign(Obj var, Node val) {
+		Node n = new Node();
+		n.kind = Node.Kind.ASSIGN;
+		n.token = val.token;
+		n.lhs = var(var, val);
+		n.rhs = val;
+		n.ty = var.ty;
+
+		Node stmt = new Node();
+		stmt.kind = Node.Kind.EXPR_STMT;
+		stmt.token = val.token;
+		stmt.lhs = n;
+		return stmt;
+	}
+
+	private static Node block(Node body, Node at) {
+		Node n = new Node();
+		n.kind = Node.Kind.BLOCK;
+		n.token = at.token;
+		n.body = body;
+		return n;
+	}
+}
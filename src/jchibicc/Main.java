@@ -1,21 +1,106 @@
 package jchibicc;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
 public class Main {
 
-	public static void main(String[] args) {
-		if (args.length != 1) {
-			S.error("%s: invalid number of arguments\n", args[0]);
+	public static void main(String[] args) throws IOException {
+		// jchibicc -server <socket>
+		// jchibicc -client <socket> args...
+		if (args.length == 2 && args[0].equals("-server")) {
+			Server.serve(args[1]);
+			return;
+		}
+		if (args.length >= 2 && args[0].equals("-client")) {
+			System.exit(Server.client(args[1], Arrays.copyOfRange(args, 2, args.length)));
 			return;
 		}
 
-		String c_code = args[0];		
-		
-		Token tok = Token.tokenize(c_code);
-		
-		Obj prog = Node.parse(tok);
-		
-		// Traverse the AST to emit assembly. 
-		Assembly.codegen(prog);		
+		try {
+			run(args).write_to(new FileOutputStream(FileDescriptor.out).getChannel());
+		} catch (S.CompileError e) {
+			System.err.println(e.getMessage().strip());
+			System.exit(1);
+		}
+	}
+
+	// Runs the compiler for a command line and returns the assembly.
+	//
+	// jchibicc [options] <program>
+	// jchibicc [options] -f <file.c>
+	//
+	// See Options for the options.
+	static AsmWriter run(String[] args) {
+		Options opt = new Options();
+		String file = null;
+		String program = null;
+		int inputs = 0;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-f") && i + 1 < args.length) {
+				file = args[++i];
+				inputs++;
+			} else if (!opt.set(args[i])) {
+				program = args[i];
+				inputs++;
+			}
+		}
+
+		if (inputs != 1) S.error("invalid number of arguments");
+		if (file != null) return emit(Token.tokenize_file(file), opt);
+		return emit(Token.tokenize(program), opt);
+	}
+
+	// Compiles a C program and returns its assembly.
+	//
+	// Each call works on its own tokens, parser and code generator, so
+	// it is safe to compile many units concurrently from any number of
+	// threads. The output only depends on the input.
+	public static String compile(String c_code) {
+		return emit(Token.tokenize(c_code), new Options()).toString();
+	}
+
+	// Compiles the C source file at `path` and returns its assembly.
+	public static String compile_file(String path) {
+		return emit(Token.tokenize_file(path), new Options()).toString();
+	}
+
+	private static AsmWriter emit(Token toks, Options opt) {
+		try {
+			Parser parser = new Parser(toks);
+			Obj prog = parser.parse();
+			Fold.fold(prog);
+			List<String> inlined = opt.inline ? Inline.inline(prog) : List.of();
+			// The SSA backend has no vector instructions.
+			if (opt.vectorize && !opt.ssa && !opt.dump_ir) Vectorize.vectorize(prog);
+			List<String> unrolled = opt.unroll ? Unroll.unroll(prog, opt.unroll_factor) : List.of();
+			if (opt.dce) prog = DeadCode.eliminate(prog);
+			if (opt.loop_opt) Loops.optimize(prog, parser.types);
+
+			AsmWriter out = new AsmWriter();
+			if (opt.dump_ir) {
+				for (Obj fn = prog; fn != null; fn = fn.next)
+					if (fn.is_function) IrBuilder.build(fn).dump(out);
+			} else {
+				// Traverse the AST to emit assembly. 
+				Assembly.codegen(prog, out, opt);
+			}
+
+			if (opt.inline_report)
+				for (String s : inlined)
+					out.str("# inline ").str(s).ch('\n');
+			if (opt.unroll_report)
+				for (String s : unrolled)
+					out.str("# unroll ").str(s).ch('\n');
+			return out;
+		} catch (S.CompileError e) {
+			if (e.loc < 0) throw e;
+			throw new S.CompileError(-1, toks.str_at(e.loc) + " " + e.getMessage());
+		}
 	}
 
-}
\ No newline at end of file
+}
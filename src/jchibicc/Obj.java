@@ -6,6 +6,7 @@ class Obj {
 	Type ty;    		 // Type
 	boolean is_local; 	 // local or global/function
 	int offset;  		 // Offset from RBP  
+	String reg;  		 // Register holding the local, or null  
 
 	boolean is_function; // Global variable or function	
 	
@@ -13,6 +14,27 @@ class Obj {
 	Node body;
 	Obj locals;
 	int stack_size;
+	int callee_saved;	 // Registers of calleereg used for locals
+
+	// Adds a new local variable to this function. The parameters are
+	// the tail of `locals`, so it goes right before them.
+	Obj new_local(String name, Type ty) {
+		Obj var = new Obj();
+		var.name = name;
+		var.ty = ty;
+		var.is_local = true;
+		if (locals == params) {
+			var.next = locals;
+			locals = var;
+			return var;
+		}
+		Obj prev = locals;
+		while (prev.next != params)
+			prev = prev.next;
+		var.next = prev.next;
+		prev.next = var;
+		return var;
+	}
 	
 	@Override
 	public String toString() {
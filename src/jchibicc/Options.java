@@ -0,0 +1,120 @@
+package jchibicc;
+
+// Code generation options of one compilation, set from "-f..." flags
+// on the command line. The defaults are what compile() uses.
+class Options {
+
+	// -fno-regalloc: evaluate expressions on the machine stack with
+	// push and pop instead of keeping temporaries in registers.
+	boolean stack_machine;
+
+	// -fssa: generate code through the SSA IR (see Ir).
+	boolean ssa;
+
+	// -dump-ir: print the SSA IR of each function instead of assembly.
+	boolean dump_ir;
+
+	// -fno-peephole: write the code as generated, see Peephole.
+	boolean peephole = true;
+
+	// -fpeephole-report: append the number of times each peephole
+	// rule was applied to the assembly, as comments.
+	boolean peephole_report;
+
+	// -fno-inline: do not inline calls, see Inline.
+	boolean inline = true;
+
+	// -finline-report: append a line for each inlined call to the
+	// assembly, as comments.
+	boolean inline_report;
+
+	// -fno-dce: keep dead code, see DeadCode.
+	boolean dce = true;
+
+	// -fno-loop-opt: do not move invariant code out of loops or
+	// strength-reduce induction variables, see Loops.
+	boolean loop_opt = true;
+
+	// -fno-unroll: do not unroll loops, see Unroll.
+	boolean unroll = true;
+
+	// -funroll-factor=<n>: the number of copies of the body a loop is
+	// partially unrolled to.
+	int unroll_factor = 4;
+
+	// -funroll-report: append a line for each unrolled loop to the
+	// assembly, as comments.
+	boolean unroll_report;
+
+	// -fno-vectorize: do not use SSE2 for element-wise array loops,
+	// see Vectorize.
+	boolean vectorize = true;
+
+	// -fno-tail-calls: generate `return f(...)` as a call followed by
+	// a return instead of a jump to f.
+	boolean tail_calls = true;
+
+	// -fframe-map: write where each local of a function lives, as
+	// comments before the function. See Frame.
+	boolean frame_map;
+
+	// Sets the option named by `arg`. Returns false if `arg` is not an
+	// option.
+	boolean set(String arg) {
+		if (arg.startsWith("-funroll-factor=")) {
+			try {
+				unroll_factor = Integer.parseInt(arg.substring("-funroll-factor=".length()));
+			} catch (NumberFormatException e) {
+				S.error("invalid unroll factor: %s", arg);
+			}
+			return true;
+		}
+
+		switch (arg) {
+		case "-fno-regalloc":
+			stack_machine = true;
+			return true;
+		case "-fssa":
+			ssa = true;
+			return true;
+		case "-dump-ir":
+			dump_ir = true;
+			return true;
+		case "-fno-peephole":
+			peephole = false;
+			return true;
+		case "-fpeephole-report":
+			peephole_report = true;
+			return true;
+		case "-fno-inline":
+			inline = false;
+			return true;
+		case "-finline-report":
+			inline_report = true;
+			return true;
+		case "-fno-dce":
+			dce = false;
+			return true;
+		case "-fno-loop-opt":
+			loop_opt = false;
+			return true;
+		case "-fno-vectorize":
+			vectorize = false;
+			return true;
+		case "-fno-tail-calls":
+			tail_calls = false;
+			return true;
+		case "-fframe-map":
+			frame_map = true;
+			return true;
+		case "-fno-unroll":
+			unroll = false;
+			return true;
+		case "-funroll-report":
+			unroll_report = true;
+			return true;
+		default:
+			return false;
+		}
+	}
+}
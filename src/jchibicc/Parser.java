@@ -0,0 +1,687 @@
+package jchibicc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//This file contains a recursive descent parser for C.
+//
+//Most functions in this file are named after the symbols they are
+//supposed to read from an input token list. For example, stmt() is
+//responsible for reading a statement from a token list. The function
+//then construct an AST node representing a statement.
+//
+//Input tokens are read through `tok`, an index into the token buffer.
+//Saving and restoring that index is all it takes to lookahead an
+//arbitrary number of tokens.
+//
+//A Parser holds the state of one translation unit, so independent
+//units can be parsed at the same time by different parsers.
+class Parser {
+
+	private final Token toks; // Input tokens
+	private int tok;          // Index of the current token
+
+	// All local variable instances created during parsing are
+	// accumulated to this list.
+	private Obj locals;
+	private Obj globals;
+
+	// Locals declared in the innermost block, or null outside of
+	// blocks (parameters). See Frame.
+	private List<Obj> decls;
+
+	// Variables visible at the current point, by interned name.
+	private final Scope scope = new Scope();
+
+	// The derived types of this compilation. Passes that run after the
+	// parser make their types here too.
+	final Type.Table types = new Type.Table();
+
+	// Types are canonical, so declarator() leaves the name it read
+	// here: the identifier's token index, and the names of the
+	// parameters if the declarator is a function.
+	private int decl_name;
+	private int[] param_names;
+
+	Parser(Token toks) {
+		this.toks = toks;
+	}
+	
+	private Node new_head() {
+		return new Node();
+	}
+	
+	private Node new_node(Node.Kind kind, int tok) {
+		Node node = new Node();
+		node.kind = kind;
+		node.token = toks.loc(tok);
+		return node;
+	}
+
+	private Node new_binary(Node.Kind kind, Node lhs, Node rhs, int tok) {
+		Node node = new_node(kind, tok);
+		node.lhs = lhs;
+		node.rhs = rhs;
+		return node;
+	}
+
+	private Node new_unary(Node.Kind kind, Node expr, int tok) {
+		Node node = new_node(kind, tok);
+		node.lhs = expr;
+		return node;
+	}
+
+	private Node new_num(long val, int tok) {
+		Node node = new_node(Node.Kind.NUM, tok);
+		node.val = val;
+		return node;
+	}
+
+	private Node new_var_node(Obj var, int tok) {
+		Node node = new_node(Node.Kind.VAR, tok);
+		node.var = var;
+		return node;
+	}
+
+	private Obj new_var(String name, Type ty) {
+		Obj var = new Obj();
+		var.name = name;
+		var.ty = ty;
+		return var;
+	}
+
+	private Obj new_lvar(int name, Type ty) {
+		Obj var = new_var(toks.name(name), ty);
+		var.is_local = true;
+		var.next = locals;
+		locals = var;
+		if (decls != null) decls.add(var);
+		scope.push(toks.id(name), var);
+		return var;
+	}
+
+	private Obj new_gvar(int name, Type ty) {
+		Obj var = new_var(toks.name(name), ty);
+		var.next = globals;
+		globals = var;
+		scope.push(toks.id(name), var);
+		return var;
+	}
+
+	// Ensure that the current token is `op`.
+	private void skip(Token.Kind op) {
+		if (toks.kind(tok) != op) S.error("expected '%s'", op.str);
+		else tok++;
+	}
+
+	// Find a variable by the id of its name.
+	private Obj find_var(int name) {
+		return scope.find(name);
+	}
+
+	private boolean consume(Token.Kind kind) {
+		if (toks.kind(tok) == kind) {
+			tok++;
+			return true;
+		} else return false;
+	}
+
+	private int get_number() {
+		if (toks.kind(tok) != Token.Kind.NUM) S.error("%s expected a number", toks.str(tok));
+		long val = toks.val(tok);
+		if (val > Integer.MAX_VALUE) S.error("%s number is too large", toks.str(tok));
+		return (int) val;
+	}
+
+	// declspec = "char" | "int"
+	private Type declspec() {
+		if (toks.kind(tok) == Token.Kind.CHAR) {
+			tok++;
+			return Type.ty_char;
+		}
+
+		skip(Token.Kind.INT);
+		return Type.ty_int;
+	}
+
+	// func-params = (param ("," param)*)? ")"
+	// param = declspec declarator
+	private Type func_params(Type ty) {
+	  Type[] params = new Type[6];
+	  int[] names = new int[6];
+	  int n = 0;
+
+	  while (toks.kind(tok) != Token.Kind.RPAREN) {
+	    if (n > 0)
+	      skip(Token.Kind.COMMA);
+	    Type basety = declspec();
+	    Type ty2 = declarator(basety);
+	    if (n == params.length) {
+	      params = Arrays.copyOf(params, n * 2);
+	      names = Arrays.copyOf(names, n * 2);
+	    }
+	    params[n] = ty2;
+	    names[n++] = decl_name;
+	  }
+
+	  param_names = Arrays.copyOf(names, n);
+	  tok++;
+	  return types.func_type(ty, Arrays.copyOf(params, n));
+	}
+
+	// type-suffix = "(" func-params
+	//  | "[" num "]" type-suffix
+	//  | ε
+	private Type type_suffix(Type ty) {
+	  if (toks.kind(tok) == Token.Kind.LPAREN) {
+		tok++;
+	    return func_params(ty);
+	  }
+
+	  if (toks.kind(tok) == Token.Kind.LBRACKET) {
+		tok++;
+	    int sz = get_number();
+	    tok++;
+	    skip(Token.Kind.RBRACKET);
+	    Type ty2 = type_suffix(ty);
+	    return types.array_of(ty2, sz);
+	  }
+	  
+	  return ty;
+	}
+
+	// declarator = "*"* ident type-suffix
+	private Type declarator(Type ty) {
+		while (consume(Token.Kind.STAR))
+			ty = types.pointer_to(ty);
+
+		if (toks.kind(tok) != Token.Kind.IDENT) 
+			S.error("%s expected a variable name\n", toks.str(tok));
+		
+		int start = tok;
+		tok++;
+		ty = type_suffix(ty);
+		decl_name = start;
+		
+		return ty;
+	}
+
+	// declaration = declspec (declarator ("=" expr)? ("," declarator ("=" expr)?)*)? ";"
+	private Node declaration() {
+		Type basety = declspec();
+
+		Node head = new_head();
+		Node cur = head;
+		int i = 0;
+
+		while (toks.kind(tok) != Token.Kind.SEMICOLON) {
+			if (i++ > 0) skip(Token.Kind.COMMA);
+
+			Type ty = declarator(basety);
+			int name = decl_name;
+			Obj var = new_lvar(name, ty);
+
+			if (toks.kind(tok) != Token.Kind.ASSIGN) continue;			
+
+			Node lhs = new_var_node(var, name);
+			tok++;
+			Node rhs = assign();
+			Node node = new_binary(Node.Kind.ASSIGN, lhs, rhs, tok);
+			cur = cur.next = new_unary(Node.Kind.EXPR_STMT, node, tok);
+		}
+
+		Node node = new_node(Node.Kind.BLOCK, tok);
+		node.body = head.next;
+		tok++;
+		return node;
+	}
+	
+	// Returns true if a given token represents a type.
+	private boolean is_typename() {
+	  return toks.kind(tok) == Token.Kind.CHAR || toks.kind(tok) == Token.Kind.INT;
+	}
+
+	// stmt = "return" expr ";"
+	// | "if" "(" expr ")" stmt ("else" stmt)?
+	// | "for" "(" expr-stmt expr? ";" expr? ")" stmt
+	// | "while" "(" expr ")" stmt
+	// | "{" compound-stmt
+	// | expr-stmt
+	private Node stmt() {
+		switch (toks.kind(tok)) {
+		case RETURN: {
+			Node node = new_node(Node.Kind.RETURN, tok);			
+			tok++;
+			node.lhs = expr();
+			skip(Token.Kind.SEMICOLON);
+			return node;
+		}
+
+		case IF: {
+			Node node = new_node(Node.Kind.IF, tok);
+			tok++;
+			skip(Token.Kind.LPAREN);						
+			node.cond = expr();			
+			skip(Token.Kind.RPAREN);			
+			node.then = stmt();			
+			if (consume(Token.Kind.ELSE))
+				node.els = stmt();
+			return node;
+		}
+
+		case FOR: {
+			Node node = new_node(Node.Kind.FOR, tok);
+			tok++;
+			skip(Token.Kind.LPAREN);
+
+			node.init = expr_stmt();
+
+			if (toks.kind(tok) != Token.Kind.SEMICOLON) node.cond = expr();				
+			skip(Token.Kind.SEMICOLON);
+
+			if (toks.kind(tok) != Token.Kind.RPAREN) node.inc = expr();				
+			skip(Token.Kind.RPAREN);
+
+			node.then = stmt();
+			return node;
+		}
+
+		case WHILE: {
+			Node node = new_node(Node.Kind.FOR, tok);
+			tok++;
+			skip(Token.Kind.LPAREN);
+			node.cond = expr();
+			skip(Token.Kind.RPAREN);
+			node.then = stmt();
+			return node;
+		}
+
+		case LBRACE:
+			tok++;
+			return compound_stmt();
+
+		default:
+			return expr_stmt();
+		}
+	}
+
+	// compound-stmt = stmt* "}"
+	private Node compound_stmt() {
+		Node node = new_node(Node.Kind.BLOCK, tok);
+		
+		Node head = new_head();
+		Node cur = head;
+
+		List<Obj> outer = decls;
+		decls = new ArrayList<>();
+		scope.enter();
+
+		while (toks.kind(tok) != Token.Kind.RBRACE) {
+			if (is_typename()) cur = cur.next = declaration();
+			else cur = cur.next = stmt();
+			Type.add_type(types, cur);
+		}
+
+		scope.leave();
+		node.decls = decls;
+		decls = outer;
+		
+		node.body = head.next;
+		tok++;
+		return node;
+	}
+
+	// expr-stmt = expr ";"
+	private Node expr_stmt() {
+		if (toks.kind(tok) == Token.Kind.SEMICOLON) {
+			Node node = new_node(Node.Kind.BLOCK, tok);
+			tok++;
+			return node;
+		}
+		Node node = new_node(Node.Kind.EXPR_STMT, tok);
+		node.lhs = expr();
+		skip(Token.Kind.SEMICOLON);
+		return node;
+	}
+
+	// expr = equality
+	private Node expr() {
+		return assign();
+	}
+
+	// assign = equality ("=" assign)?
+	private Node assign() {
+		Node node = equality();		
+		int start = tok;
+		if (toks.kind(tok) == Token.Kind.ASSIGN) {
+			tok++;
+			node = new_binary(Node.Kind.ASSIGN, node, assign(), start);
+		}
+		return node;
+	}
+
+	// equality = relational ("==" relational | "!=" relational)*
+	private Node equality() {
+		Node node = relational();
+
+		for (;;) {
+			int start = tok;
+			
+			switch (toks.kind(tok)) {
+			case EQ:
+				tok++;
+				node = new_binary(Node.Kind.EQ, node, relational(), start);
+				continue;
+			case NE:
+				tok++;
+				node = new_binary(Node.Kind.NE, node, relational(), start);
+				continue;
+			default:
+				return node;
+			}
+		}
+	}
+
+	// relational = add ("<" add | "<=" add | ">" add | ">=" add)*
+	private Node relational() {
+		Node node = add();
+
+		for (;;) {
+			int start = tok;
+			
+			switch (toks.kind(tok)) {
+			case LT:
+				tok++;
+				node = new_binary(Node.Kind.LT, node, add(), start);
+				continue;
+			case LE:
+				tok++;
+				node = new_binary(Node.Kind.LE, node, add(), start);
+				continue;
+			case GT:
+				tok++;
+				node = new_binary(Node.Kind.LT, add(), node, start);
+				continue;
+			case GE:
+				tok++;
+				node = new_binary(Node.Kind.LE, add(), node, start);
+				continue;
+			default:
+				return node;
+			}
+		}
+	}
+	
+	// In C, `+` operator is overloaded to perform the pointer arithmetic.
+	// If p is a pointer, p+n adds not n but sizeof(*p)*n to the value of p,
+	// so that p+n points to the location n elements (not bytes) ahead of p.
+	// In other words, we need to scale an integer value before adding to a
+	// pointer value. This function takes care of the scaling.
+	private Node new_add(Node lhs, Node rhs, int tok) {
+	  Type.add_type(types, lhs);
+	  Type.add_type(types, rhs);
+
+	  // num + num
+	  if (Type.is_integer(lhs.ty) && Type.is_integer(rhs.ty))
+	    return new_binary(Node.Kind.ADD, lhs, rhs, tok);
+
+	  if (lhs.ty.base != null && rhs.ty.base != null)
+	    S.error("%s invalid operands", toks.str(tok));
+
+	  // Canonicalize `num + ptr` to `ptr + num`.
+	  if (lhs.ty.base == null && rhs.ty.base != null) {
+	    Node tmp = lhs;
+	    lhs = rhs;
+	    rhs = tmp;
+	  }
+
+	  // ptr + num
+	  rhs = new_binary(Node.Kind.MUL, rhs, new_num(lhs.ty.base.size, tok), tok);
+	  return new_binary(Node.Kind.ADD, lhs, rhs, tok);
+	}
+
+	// Like `+`, `-` is overloaded for the pointer type.
+	private Node new_sub(Node lhs, Node rhs, int tok) {
+	  Type.add_type(types, lhs);
+	  Type.add_type(types, rhs);
+
+	  // num - num
+	  if (Type.is_integer(lhs.ty) && Type.is_integer(rhs.ty))
+	    return new_binary(Node.Kind.SUB, lhs, rhs, tok);
+
+	  // ptr - num
+	  if (lhs.ty.base != null && Type.is_integer(rhs.ty)) {
+	    rhs = new_binary(Node.Kind.MUL, rhs, new_num(lhs.ty.base.size, tok), tok);
+	    Type.add_type(types, rhs);
+	    Node node = new_binary(Node.Kind.SUB, lhs, rhs, tok);
+	    node.ty = lhs.ty;
+	    return node;
+	  }
+
+	  // ptr - ptr, which returns how many elements are between the two.
+	  if (lhs.ty.base != null && rhs.ty.base != null) {
+	    Node node = new_binary(Node.Kind.SUB, lhs, rhs, tok);
+	    node.ty = Type.ty_int;
+	    return new_binary(Node.Kind.DIV, node, new_num(lhs.ty.base.size, tok), tok);
+	  }
+
+	  S.error("%s invalid operands", toks.str(tok));
+	  return null;
+	}	
+
+	// add = mul ("+" mul | "-" mul)*
+	private Node add() {
+		Node node = mul();
+
+		for (;;) {
+			int start = tok;
+			
+			switch (toks.kind(tok)) {
+			case PLUS:
+				tok++;
+				node = new_add(node, mul(), start);
+				continue;
+			case MINUS:
+				tok++;
+				node = new_sub(node, mul(), start);
+				continue;
+			default:
+				return node;
+			}
+		}
+	}
+
+	// mul = primary ("*" primary | "/" primary)*
+	private Node mul() {
+		Node node = unary();
+
+		for (;;) {
+			int start = tok;
+			
+			switch (toks.kind(tok)) {
+			case STAR:
+				tok++;
+				node = new_binary(Node.Kind.MUL, node, unary(), start);
+				continue;
+			case SLASH:
+				tok++;
+				node = new_binary(Node.Kind.DIV, node, unary(), start);
+				continue;
+			default:
+				return node;
+			}
+		}
+	}
+
+	// unary = ("+" | "-" | "*" | "&") unary
+	//  | postfix
+	private Node unary() {
+		switch (toks.kind(tok)) {
+		case PLUS:
+			tok++;
+			return unary();
+		case MINUS:
+			tok++;
+			return new_unary(Node.Kind.NEG, unary(), tok);
+		case AMP:
+			tok++;
+			return new_unary(Node.Kind.ADDR, unary(), tok);
+		case STAR:
+			tok++;
+			return new_unary(Node.Kind.DEREF, unary(), tok);
+		default:
+			return postfix();
+		}
+	}
+
+	// postfix = primary ("[" expr "]")*
+	private Node postfix() {
+	  Node node = primary();
+
+	  while (toks.kind(tok) == Token.Kind.LBRACKET) {
+	    // x[y] is short for *(x+y)
+	    int start = tok;
+	    tok++;
+	    Node idx = expr();
+	    skip(Token.Kind.RBRACKET);
+	    node = new_unary(Node.Kind.DEREF, new_add(node, idx, start), start);
+	  }
+	  return node;
+	}
+	
+	// funcall = ident "(" (assign ("," assign)*)? ")"
+	private Node funcall() {
+	  int start = tok;
+	  tok += 2;
+
+	  Node head = new_head();
+	  Node cur = head;
+
+	  while (toks.kind(tok) != Token.Kind.RPAREN) {
+	    if (cur != head)
+	      skip(Token.Kind.COMMA);
+	    cur = cur.next = assign();
+	  }
+
+	  skip(Token.Kind.RPAREN);
+
+	  Node node = new_node(Node.Kind.FUNCALL, start);
+	  node.funcname = toks.name(start);
+	  node.args = head.next;
+	  return node;
+	}
+
+	// primary = "(" expr ")" | "sizeof" unary | ident func-args? | num
+	private Node primary() {
+		switch (toks.kind(tok)) {
+		case LPAREN: {
+			tok++;
+			Node node = expr();
+			skip(Token.Kind.RPAREN);
+			return node;
+		}
+
+		case SIZEOF: {
+			tok++;
+			Node node = unary();
+			Type.add_type(types, node);
+			return new_num(node.ty.size, tok);
+		}
+
+		case IDENT: {
+			// Function call
+			if (toks.kind(tok + 1) == Token.Kind.LPAREN)
+			      return funcall();
+
+		    // Variable			
+			Obj var = find_var(toks.id(tok));
+			if (var == null) {
+				S.error("%s undefined variable\n", toks.str(tok));
+			}
+			Node node = new_var_node(var, tok);
+			tok++;
+			return node;
+		}
+
+		case NUM: {
+			Node node = new_num(toks.val(tok), tok);
+			tok++;
+			return node;
+		}
+
+		default:
+			S.error("%s expected an expression", toks.str(tok));
+			return null;
+		}
+	}
+	
+	private void create_param_lvars(Type[] params, int[] names) {
+		for (int i = params.length - 1; i >= 0; i--)
+			new_lvar(names[i], params[i]);
+	}
+
+	private void function(Type basety) {
+		Type ty = declarator(basety);
+
+		Obj fn = new_gvar(decl_name, ty);
+		fn.is_function = true;
+		
+		locals = null;
+		scope.enter();
+	    create_param_lvars(ty.params, param_names);
+		fn.params = locals;		
+
+		skip(Token.Kind.LBRACE);
+		fn.body = compound_stmt();
+		fn.locals = locals;
+		scope.leave();
+	}
+
+	private void global_variable(Type basety) {
+		boolean first = true;
+
+		while (!consume(Token.Kind.SEMICOLON)) {
+			if (!first) skip(Token.Kind.COMMA);
+			first = false;
+
+			Type ty = declarator(basety);
+			new_gvar(decl_name, ty);
+		}
+	}
+
+	// Lookahead tokens and returns true if a given token is a start
+	// of a function definition or declaration.
+	private boolean is_function() {
+		if (toks.kind(tok) == Token.Kind.SEMICOLON) return false;
+
+		int start = tok;
+		Type ty = declarator(Type.ty_int);
+		tok = start;
+		
+		return ty.kind == Type.Kind.FUNC;
+	}
+		
+	// program = function-definition*
+	Obj parse() {
+		
+		while (toks.kind(tok) != Token.Kind.EOF) {
+			// Earlier declarations are fully parsed; let the lexer
+			// drop their tokens.
+			toks.release(tok);
+
+			Type basety = declspec();	
+		    
+			// Function
+		    if (is_function()) {
+		      function(basety);
+		      continue;
+		    }
+
+		    // Global variable
+		    global_variable(basety);
+		}
+		return globals;
+	}
+
+}
@@ -0,0 +1,431 @@
+package jchibicc;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Peephole optimizer.
+//
+// Looks at short windows of a function's Code and rewrites them into
+// shorter sequences that do the same thing. A rewrite that makes a
+// register's old value unnecessary is only done when the register is
+// dead afterwards: no path from there reads it before writing it.
+//
+// One Peephole is shared by all functions of a compilation, which may
+// be optimized on different threads; it only keeps the hit counts.
+class Peephole {
+
+	enum Rule {
+		PUSH_POP("push-pop"),       // push A; ...; pop B   -> mov A, B; ...
+		IMM_OPERAND("imm-operand"), // mov $n, R; op R, D   -> op $n, D
+		MOV_CHAIN("mov-chain"),     // mov A, R; mov R, B   -> mov A, B
+		COPY_PROP("copy-prop"),     // mov S, R; op .R., D  -> op .S., D
+		RELOAD("reload"),           // mov R, M; mov M, S   -> mov R, M; mov R, S
+		SELF_MOV("self-mov"),       // mov R, R             ->
+		CMP_BRANCH("cmp-branch"),   // setcc; movzb; cmp $0; je L -> jncc L
+		JMP_NEXT("jmp-next");       // jmp L; L:            -> L:
+
+		final String name;
+
+		Rule(String name) {
+			this.name = name;
+		}
+	}
+
+	private final AtomicLongArray hits = new AtomicLongArray(Rule.values().length);
+
+	private static final String[] argregs = {"%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"};
+	private static final String[] caller_saved = {
+		"%rax", "%rcx", "%rdx", "%rsi", "%rdi", "%r8", "%r9", "%r10", "%r11",
+	};
+
+	// Writes "# peephole <rule> <hits>" for each rule.
+	void report(AsmWriter out) {
+		for (Rule r : Rule.values())
+			out.str("# peephole ").str(r.name).ch(' ').num(hits.get(r.ordinal())).ch('\n');
+	}
+
+	void run(Code code) {
+		// Rewriting may expose more windows; a few rounds are enough.
+		for (int round = 0; round < 4; round++)
+			if (!new Pass(code.lines).run()) return;
+	}
+
+	// One round over the lines. Deleted lines are set to null and
+	// dropped at the end, so that label positions stay valid.
+	private class Pass {
+		final List<Code.Line> lines;
+		final Map<String, Integer> labels = new HashMap<>();
+		boolean changed;
+
+		Pass(List<Code.Line> lines) {
+			this.lines = lines;
+			for (int i = 0; i < lines.size(); i++)
+				if (lines.get(i).type == Code.LABEL) labels.put(lines.get(i).op, i);
+		}
+
+		boolean run() {
+			for (int i = 0; i < lines.size(); i++) {
+				Code.Line l = lines.get(i);
+				if (l == null || l.type != Code.INS) continue;
+				if (self_mov(i) || push_pop(i) || cmp_branch(i) || jmp_next(i)
+						|| imm_operand(i) || mov_chain(i) || copy_prop(i) || reload(i))
+					changed = true;
+			}
+			if (changed) lines.removeIf(l -> l == null);
+			return changed;
+		}
+
+		private void hit(Rule r) {
+			hits.incrementAndGet(r.ordinal());
+		}
+
+		private int next(int i) {
+			if (i < 0) return -1;
+			for (i++; i < lines.size(); i++)
+				if (lines.get(i) != null) return i;
+			return -1;
+		}
+
+		private Code.Line line(int i) {
+			return i < 0 ? null : lines.get(i);
+		}
+
+		private boolean self_mov(int i) {
+			Code.Line l = lines.get(i);
+			if (!l.is("mov") || l.a.kind != Code.Opd.REG || !l.a.same(l.b)) return false;
+			lines.set(i, null);
+			hit(Rule.SELF_MOV);
+			return true;
+		}
+
+		// push A; ...; pop B, where the lines between them are a few
+		// plain instructions that leave B and the stack alone. The value
+		// is copied to B right away instead.
+		private boolean push_pop(int i) {
+			Code.Line push = lines.get(i);
+			if (!push.is("push") || push.a.kind != Code.Opd.REG) return false;
+			String a = push.a.reg;
+
+			int j = next(i);
+			int mids = 0;
+			for (; j >= 0 && !lines.get(j).is("pop"); j = next(j)) {
+				Code.Line mid = lines.get(j);
+				if (++mids > 4 || mid.type != Code.INS || !known(mid) || is_jump(mid)
+						|| mid.is("push") || mid.is("call") || mid.is("ret") || uses_reg(mid, "%rsp"))
+					return false;
+			}
+			Code.Line pop = line(j);
+			if (pop == null || pop.a.kind != Code.Opd.REG) return false;
+			String b = pop.a.reg;
+			for (int k = next(i); k != j; k = next(k))
+				if (reads(lines.get(k), b) || writes(lines.get(k), b) || uses_reg(lines.get(k), b))
+					return false;
+
+			lines.set(j, null);
+			if (a.equals(b)) lines.set(i, null);
+			else lines.set(i, new Code.Line(Code.INS, "mov", Code.Opd.reg(a), Code.Opd.reg(b)));
+			hit(Rule.PUSH_POP);
+			return true;
+		}
+
+		// mov $n, R; ...; op R, D with R dead after op: the constant
+		// becomes an immediate operand.
+		private boolean imm_operand(int i) {
+			Code.Line mov = lines.get(i);
+			if (!mov.is("mov") || mov.a.kind != Code.Opd.IMM || mov.b.kind != Code.Opd.REG) return false;
+			long n = mov.a.val;
+			if (n != (int) n) return false;
+			String r = mov.b.reg;
+
+			int j = i;
+			for (int k = 0; k < 3; k++) {
+				j = next(j);
+				Code.Line l = line(j);
+				if (l == null || l.type != Code.INS || is_jump(l)) return false;
+				if (reads(l, r)) {
+					if (!(l.is("add") || l.is("sub") || l.is("imul") || l.is("cmp") || l.is("mov")
+							|| l.is("and") || l.is("or") || l.is("xor")))
+						return false;
+					if (!l.a.is_reg(r) || l.b.kind != Code.Opd.REG || l.b.reg.equals(r)) return false;
+					if (!dead_after(j, r)) return false;
+					l.a = mov.a;
+					lines.set(i, null);
+					hit(Rule.IMM_OPERAND);
+					return true;
+				}
+				if (writes(l, r)) return false;
+			}
+			return false;
+		}
+
+		// A value that is only loaded into R to be copied elsewhere goes
+		// straight to its destination.
+		private boolean mov_chain(int i) {
+			Code.Line first = lines.get(i);
+			if (!(first.is("mov") || first.is("lea") || first.is("movsbq") || first.is("movzb"))) return false;
+			if (first.b == null || first.b.kind != Code.Opd.REG) return false;
+			String r = first.b.reg;
+
+			int j = next(i);
+			Code.Line second = line(j);
+			if (second == null || !second.is("mov") || !second.a.is_reg(r)) return false;
+			Code.Opd dst = second.b;
+			boolean mem = dst.kind == Code.Opd.MEM || dst.kind == Code.Opd.RIP;
+			if (mem && (!first.is("mov") || first.a.kind != Code.Opd.REG)) return false;
+			if (mem && in(dst, r)) return false;
+			if (!dead_after(j, r)) return false;
+
+			first.b = dst;
+			lines.set(j, null);
+			hit(Rule.MOV_CHAIN);
+			return true;
+		}
+
+		// mov S, R followed by a use of R that does not write it: use S
+		// itself, if R is dead afterwards.
+		private boolean copy_prop(int i) {
+			Code.Line mov = lines.get(i);
+			if (!mov.is("mov") || mov.a.kind != Code.Opd.REG || mov.b.kind != Code.Opd.REG) return false;
+			String src = mov.a.reg, r = mov.b.reg;
+			if (!full(src).equals(src) || !full(r).equals(r)) return false;
+
+			int j = next(i);
+			Code.Line l = line(j);
+			if (l == null || l.type != Code.INS || !known(l) || l.b == null || writes(l, r)) return false;
+			if (!(l.is("cmp") || l.is("mov") || l.is("add") || l.is("sub") || l.is("imul") || l.is("lea")))
+				return false;
+			// Every mention of R must be the full register; the
+			// destination may only be memory addressed through R.
+			if (l.a.kind == Code.Opd.REG && l.a.reg.equals(r)) {
+				// source operand
+			} else if (in(l.a, r)) {
+				if (l.a.kind != Code.Opd.MEM) return false;
+			}
+			if (in(l.b, r) && !(l.b.kind == Code.Opd.MEM || l.is("cmp") && l.b.reg.equals(r))) return false;
+			if (!in(l.a, r) && !in(l.b, r)) return false;
+			if (!dead_after(j, r)) return false;
+
+			l.a = rename(l.a, r, src);
+			l.b = rename(l.b, r, src);
+			lines.set(i, null);
+			hit(Rule.COPY_PROP);
+			return true;
+		}
+
+		// A value just stored to a frame slot is still in its register.
+		private boolean reload(int i) {
+			Code.Line store = lines.get(i);
+			if (!store.is("mov") || store.a.kind != Code.Opd.REG || store.b.kind != Code.Opd.MEM) return false;
+			if (!store.b.reg.equals("%rbp") || store.b.idx != null || !full(store.a.reg).equals(store.a.reg)) return false;
+
+			int j = next(i);
+			Code.Line load = line(j);
+			if (load == null || !load.is("mov") || !load.a.same(store.b) || load.b.kind != Code.Opd.REG)
+				return false;
+			if (load.b.is_reg(store.a.reg)) lines.set(j, null);
+			else load.a = store.a;
+			hit(Rule.RELOAD);
+			return true;
+		}
+
+		// cmp; setcc %al; movzb %al, %rax; cmp $0, %rax; je L
+		private boolean cmp_branch(int i) {
+			Code.Line set = lines.get(i);
+			if (!set.op.startsWith("set") || !set.a.is_reg("%al")) return false;
+			int j1 = next(i), j2 = next(j1), j3 = next(j2);
+			Code.Line movzb = line(j1), cmp = line(j2), jcc = line(j3);
+			if (movzb == null || !movzb.is("movzb") || !movzb.a.is_reg("%al") || !movzb.b.is_reg("%rax"))
+				return false;
+			if (cmp == null || !cmp.is("cmp") || cmp.a.kind != Code.Opd.IMM || cmp.a.val != 0
+					|| !cmp.b.is_reg("%rax"))
+				return false;
+			if (jcc == null || !(jcc.is("je") || jcc.is("jne"))) return false;
+			if (!dead_after(j3, "%rax")) return false;
+
+			String cc = set.op.substring(3);
+			jcc.op = "j" + (jcc.is("je") ? invert(cc) : cc);
+			lines.set(i, null);
+			lines.set(j1, null);
+			lines.set(j2, null);
+			hit(Rule.CMP_BRANCH);
+			return true;
+		}
+
+		private boolean jmp_next(int i) {
+			Code.Line jmp = lines.get(i);
+			if (!jmp.is("jmp") || jmp.a.kind != Code.Opd.SYM) return false;
+			for (int j = next(i); j >= 0 && lines.get(j).type == Code.LABEL; j = next(j))
+				if (lines.get(j).op.equals(jmp.a.sym)) {
+					lines.set(i, null);
+					hit(Rule.JMP_NEXT);
+					return true;
+				}
+			return false;
+		}
+
+		// Returns true if no path from after line i reads `reg` before
+		// writing it. Paths are followed through jumps to local labels
+		// for a bounded number of lines; anything not understood counts
+		// as a read.
+		private boolean dead_after(int i, String reg) {
+			return dead_from(next(i), reg, new BitSet(), new int[] {64});
+		}
+
+		private boolean dead_from(int j, String reg, BitSet seen, int[] budget) {
+			for (; j >= 0; j = next(j)) {
+				if (seen.get(j)) return true;
+				seen.set(j);
+				if (--budget[0] < 0) return false;
+
+				Code.Line l = lines.get(j);
+				if (l.type != Code.INS) continue;
+				if (!known(l) || reads(l, reg)) return false;
+
+				if (l.is("ret")) return is_caller_saved(reg);
+				if (l.is("call")) return is_caller_saved(reg);
+				if (is_jump(l)) {
+					Integer target = labels.get(l.a.sym);
+					if (target == null) return false;
+					if (!dead_from(target, reg, seen, budget)) return false;
+					if (l.is("jmp")) return true;
+					continue;
+				}
+				if (writes(l, reg)) return true;
+			}
+			return true;
+		}
+	}
+
+	private static Code.Opd rename(Code.Opd o, String from, String to) {
+		if (o == null || !in(o, from)) return o;
+		if (o.kind == Code.Opd.REG) return Code.Opd.reg(to);
+		String base = from.equals(o.reg) ? to : o.reg;
+		String idx = from.equals(o.idx) ? to : o.idx;
+		return idx == null ? Code.Opd.mem(o.val, base) : Code.Opd.mem(o.val, base, idx, o.scale);
+	}
+
+	private static boolean is_jump(Code.Line l) {
+		return l.type == Code.INS && l.op.charAt(0) == 'j';
+	}
+
+	private static boolean is_caller_saved(String reg) {
+		for (String r : caller_saved)
+			if (r.equals(reg)) return true;
+		return false;
+	}
+
+	private static String invert(String cc) {
+		switch (cc) {
+		case "e": return "ne";
+		case "ne": return "e";
+		case "l": return "ge";
+		case "ge": return "l";
+		case "le": return "g";
+		case "g": return "le";
+		default: throw new AssertionError(cc);
+		}
+	}
+
+	// The 64-bit register that `r` is a part of.
+	static String full(String r) {
+		switch (r) {
+		case "%al": return "%rax";
+		case "%dil": return "%rdi";
+		case "%sil": return "%rsi";
+		case "%dl": return "%rdx";
+		case "%cl": return "%rcx";
+		case "%r8b": return "%r8";
+		case "%r9b": return "%r9";
+		case "%r10b": return "%r10";
+		case "%r11b": return "%r11";
+		default: return r;
+		}
+	}
+
+	private static boolean known(Code.Line l) {
+		switch (l.op) {
+		case "mov": case "lea": case "movsbq": case "movzb":
+		case "add": case "sub": case "imul": case "and": case "or": case "xor":
+		case "shl": case "shr": case "sar":
+		case "cmp": case "neg": case "push": case "pop": case "cqo": case "idiv":
+		case "call": case "ret":
+			return true;
+		default:
+			return is_jump(l) || l.op.startsWith("set");
+		}
+	}
+
+	private static boolean in(Code.Opd o, String reg) {
+		return o != null && (o.reg != null && full(o.reg).equals(reg) || o.idx != null && o.idx.equals(reg));
+	}
+
+	// Whether `l` mentions `reg` at all.
+	private static boolean uses_reg(Code.Line l, String reg) {
+		return in(l.a, reg) || in(l.b, reg);
+	}
+
+	// Whether `l` may read any part of `reg`.
+	static boolean reads(Code.Line l, String reg) {
+		switch (l.op) {
+		case "cqo":
+			return reg.equals("%rax");
+		case "idiv":
+			return reg.equals("%rax") || reg.equals("%rdx") || in(l.a, reg);
+		case "imul":
+			// The one-operand form multiplies %rax to %rdx:%rax.
+			if (l.b == null) return reg.equals("%rax") || in(l.a, reg);
+			break;
+		case "ret":
+			return reg.equals("%rax");
+		case "call":
+			if (reg.equals("%rax")) return true;
+			for (String r : argregs)
+				if (r.equals(reg)) return true;
+			return false;
+		case "pop":
+			return false;
+		default:
+			break;
+		}
+		if (is_jump(l)) return false;
+
+		if (l.b == null) {
+			// push, neg, setcc (which keeps the rest of the register)
+			return in(l.a, reg);
+		}
+		if (in(l.a, reg)) return true;
+		if (l.b.kind == Code.Opd.MEM) return in(l.b, reg);
+		// The destination register is read unless it is overwritten
+		// as a whole.
+		boolean overwrite = l.is("mov") || l.is("lea") || l.is("movsbq") || l.is("movzb");
+		return !overwrite && in(l.b, reg);
+	}
+
+	// Whether `l` overwrites all of `reg`.
+	static boolean writes(Code.Line l, String reg) {
+		switch (l.op) {
+		case "cqo":
+			return reg.equals("%rdx");
+		case "idiv":
+			return reg.equals("%rax") || reg.equals("%rdx");
+		case "imul":
+			if (l.b == null) return reg.equals("%rax") || reg.equals("%rdx");
+			break;
+		case "call":
+			return is_caller_saved(reg);
+		case "pop":
+		case "neg":
+			return l.a.is_reg(reg);
+		case "push":
+		case "cmp":
+			return false;
+		default:
+			break;
+		}
+		if (l.op.startsWith("set") || is_jump(l)) return false;
+		return l.b != null && l.b.is_reg(reg);
+	}
+}
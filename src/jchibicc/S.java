@@ -1,89 +1,97 @@
 package jchibicc;
 
-import java.io.PrintStream;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 // S = static methods (boilerplate code)
 class S {
 	
-	private static Pattern pIsNumeric = Pattern.compile("-?\\d+(\\.\\d+)?");
-	
-	static boolean isNumeric(String strNum) {
-		if (strNum == null) {
-			return false;
+	// A compile error. `loc` is the source offset of the offending
+	// token, or -1; the driver puts the token text in front of the
+	// message when it reports the error.
+	static class CompileError extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		final int loc;
+
+		CompileError(int loc, String msg) {
+			super(msg);
+			this.loc = loc;
 		}
-		return pIsNumeric.matcher(strNum).matches();
-	}	
+	}
 
 	static void error(String s, Object... o) {
-		printf(System.err, s, o);
-		throw new RuntimeException("ERRO");
-		// System.exit(1);
+		throw new CompileError(-1, String.format(s, o));
 	}
 
-	static void printf(String s, Object... o) {
-		printf(System.out, s, o);
+	// Reports an error at the token that starts at source offset `loc`.
+	static void error_tok(int loc, String s, Object... o) {
+		throw new CompileError(loc, String.format(s, o));
 	}
+	
+	// Keywords and punctuators are looked up in a perfect hash table:
+	// the multiplier is searched once at startup so that no two
+	// spellings share a slot. A lookup is then one hash, one array read
+	// and one comparison to reject identifiers that are not keywords.
+	private static final int HASH_BITS = 11;
+	private static final String[] spellings = new String[1 << HASH_BITS];
+	private static final Token.Kind[] kinds = new Token.Kind[1 << HASH_BITS];
+	private static final int seed;
+
+	static {
+		// Digraphs are alternative spellings of existing punctuators.
+		String[] digraphs = { "<:", ":>", "<%", "%>", "%:", "%:%:" };
+		Token.Kind[] digraph_kinds = { Token.Kind.LBRACKET, Token.Kind.RBRACKET,
+				Token.Kind.LBRACE, Token.Kind.RBRACE, Token.Kind.HASH, Token.Kind.HASHHASH };
 
-	private static void printf(PrintStream out, String s, Object... o) {
-		out.printf(s, o);
+		int s = 0;
+		for (;;) {
+			s += 0x9E3779B9; // spread candidates over the whole int range
+			Arrays.fill(spellings, null);
+			boolean ok = true;
+			for (Token.Kind kind : Token.Kind.values())
+				if (kind.str != null) ok &= insert(kind.str, kind, s);
+			for (int i = 0; i < digraphs.length; i++)
+				ok &= insert(digraphs[i], digraph_kinds[i], s);
+			if (ok) break;
+		}
+		seed = s;
 	}
-	
-	static boolean isValidCKeyword(String name) {
-        // Array of all C keywords
-        String[] cKeywords = {
-            "auto", "break", "case", "char", "const", "continue", "default", "do", "double", 
-            "else", "enum", "extern", "float", "for", "goto", "if", "inline", "int", "long", 
-            "register", "restrict", "return", "short", "signed", "sizeof", "static", "struct", 
-            "switch", "typedef", "union", "unsigned", "void", "volatile", "while", "_Alignas", 
-            "_Alignof", "_Atomic", "_Bool", "_Complex", "_Generic", "_Imaginary", "_Noreturn", 
-            "_Static_assert", "_Thread_local"
-        };
 
-        // Check if the given name matches any C keyword
-        for (String keyword : cKeywords) {
-            if (name.equals(keyword)) {
-                return true;  // It's a C keyword
-            }
-        }
+	private static boolean insert(String str, Token.Kind kind, int seed) {
+		int h = hash(ByteBuffer.wrap(str.getBytes()), 0, str.length(), seed);
+		if (spellings[h] != null) return false;
+		spellings[h] = str;
+		kinds[h] = kind;
+		return true;
+	}
 
-        return false;  // Not a C keyword
-    }	
-	
-    static boolean isValidCVariableName(String name) {
-        // Regex for valid C variable names: starts with a letter or underscore, followed by letters, numbers, or underscores
-        String regex = "^[a-zA-Z_][a-zA-Z0-9_]*$";
+	private static int hash(ByteBuffer p, int loc, int len, int seed) {
+		int h = len;
+		for (int i = loc; i < loc + len; i++)
+			h = h * 31 + p.get(i);
+		return (h * seed) >>> (32 - HASH_BITS);
+	}
 
-        // Check if the string matches the regex
-        if (!name.matches(regex)) {
-            return false;
-        }
+	private static Token.Kind lookup(ByteBuffer p, int loc, int len) {
+		int h = hash(p, loc, len, seed);
+		String str = spellings[h];
+		if (str == null || str.length() != len) return null;
+		for (int i = 0; i < len; i++)
+			if (p.get(loc + i) != str.charAt(i)) return null;
+		return kinds[h];
+	}
 
-        // Check if the given name matches any C keyword
-        if (isValidCKeyword(name)) {
-        	return false;
-        }
-        
-        return true;  // Passed both checks, it's a valid variable name
-    }	
-    
-    static boolean isValidCPunctuator(String str) {
-        // List of all valid C punctuators
-        String[] punctuators = {
-            "[", "]", "(", ")", "{", "}", ".", "->", "++", "--", "&", "*", "+", "-", "~", "!",
-            "/", "%", "<<", ">>", "<", ">", "<=", ">=", "==", "!=", "^", "|", "&&", "||", "?",
-            ":", ";", "...", "=", "*=", "/=", "%=", "+=", "-=", "<<=", ">>=", "&=", "^=", "|=",
-            ",", "#", "##", "<:", ":>", "<%", "%>", "%:", "%:%:"
-        };
+	// Returns the keyword kind of p[loc, loc+len), or null if it is an
+	// ordinary identifier.
+	static Token.Kind keyword(ByteBuffer p, int loc, int len) {
+		if (len > 14) return null; // longer than "_Static_assert"
+		return lookup(p, loc, len);
+	}
 
-        // Check if the string is in the list of valid punctuators
-        for (String punctuator : punctuators) {
-            if (str.equals(punctuator)) {
-                return true;  // It's a valid punctuator
-            }
-        }
+	// Returns the kind of the punctuator p[loc, loc+len).
+	static Token.Kind punct(ByteBuffer p, int loc, int len) {
+		return lookup(p, loc, len);
+	}
 
-        return false;  // Not a valid punctuator
-    }    
-	
 }
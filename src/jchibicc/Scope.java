@@ -0,0 +1,51 @@
+package jchibicc;
+
+import java.util.Arrays;
+
+// Symbol table with block scopes.
+//
+// Variables are looked up by the id the lexer gave to their interned
+// name, so a lookup is a single array read. Declaring a variable logs
+// the binding it shadows, and leaving a scope undoes the bindings made
+// since the scope was entered.
+class Scope {
+	private Obj[] vars = new Obj[64]; // Innermost variable for each name id
+
+	// Undo log: name id and the variable it was bound to before
+	private int[] log_name = new int[64];
+	private Obj[] log_prev = new Obj[64];
+	private int log_len;
+
+	private int[] marks = new int[16]; // log_len at each enter()
+	private int depth;
+
+	void enter() {
+		if (depth == marks.length) marks = Arrays.copyOf(marks, depth * 2);
+		marks[depth++] = log_len;
+	}
+
+	void leave() {
+		int mark = marks[--depth];
+		while (log_len > mark) {
+			log_len--;
+			vars[log_name[log_len]] = log_prev[log_len];
+			log_prev[log_len] = null;
+		}
+	}
+
+	void push(int name, Obj var) {
+		if (name >= vars.length) vars = Arrays.copyOf(vars, Math.max(name + 1, vars.length * 2));
+		if (log_len == log_name.length) {
+			log_name = Arrays.copyOf(log_name, log_len * 2);
+			log_prev = Arrays.copyOf(log_prev, log_len * 2);
+		}
+		log_name[log_len] = name;
+		log_prev[log_len] = vars[name];
+		log_len++;
+		vars[name] = var;
+	}
+
+	Obj find(int name) {
+		return name < vars.length ? vars[name] : null;
+	}
+}
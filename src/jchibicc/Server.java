@@ -0,0 +1,181 @@
+package jchibicc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Compile server. A resident JVM that takes compile requests, so a
+// build that compiles one file at a time pays for JVM startup and JIT
+// warm-up only once.
+//
+// The server listens on a Unix-domain socket, or reads requests from
+// stdin and answers on stdout when the socket is "-" (for a build
+// driver that keeps the server as a coprocess). Either way a
+// connection carries any number of requests:
+//
+//   request:  the command line arguments, each followed by a NUL
+//             byte, then one more NUL
+//   response: "<status> <length>\n" followed by <length> bytes: the
+//             assembly if status is 0, the error message if it is 1
+//
+// `jchibicc -client <socket> args...` sends one request and streams
+// the response to stdout or stderr.
+class Server {
+
+	static void serve(String socket) throws IOException {
+		if (socket.equals("-")) {
+			handle(System.in, new FileOutputStream(FileDescriptor.out).getChannel());
+			return;
+		}
+
+		Path path = Path.of(socket);
+		Files.deleteIfExists(path);
+
+		ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(UnixDomainSocketAddress.of(path));
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				// nothing left to do on the way out
+			}
+		}));
+
+		ExecutorService pool = Executors.newCachedThreadPool();
+		for (;;) {
+			SocketChannel ch = server.accept();
+			pool.execute(() -> {
+				try (ch) {
+					handle(Channels.newInputStream(ch), ch);
+				} catch (IOException e) {
+					System.err.println("jchibicc server: " + e.getMessage());
+				}
+			});
+		}
+	}
+
+	// Answers requests until the other side closes the connection.
+	private static void handle(InputStream in, WritableByteChannel out) throws IOException {
+		in = new BufferedInputStream(in);
+
+		for (;;) {
+			String[] args = read_request(in);
+			if (args == null) return;
+
+			AsmWriter asm;
+			try {
+				asm = Main.run(args);
+			} catch (S.CompileError e) {
+				fail(out, e.getMessage().strip());
+				continue;
+			} catch (RuntimeException e) {
+				// A compiler bug fails this request, not the server.
+				fail(out, "internal error: " + e);
+				continue;
+			}
+
+			write(out, ("0 " + asm.size() + "\n").getBytes(StandardCharsets.US_ASCII));
+			asm.write_to(out);
+		}
+	}
+
+	// Sends a status-1 response with the error message `msg`.
+	private static void fail(WritableByteChannel out, String msg) throws IOException {
+		byte[] b = (msg + "\n").getBytes(StandardCharsets.UTF_8);
+		write(out, ("1 " + b.length + "\n").getBytes(StandardCharsets.US_ASCII));
+		write(out, b);
+	}
+
+	private static void write(WritableByteChannel ch, byte[] b) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(b);
+		while (bb.hasRemaining())
+			ch.write(bb);
+	}
+
+	// Returns null at end of input.
+	private static String[] read_request(InputStream in) throws IOException {
+		List<String> args = new ArrayList<>();
+		ByteArrayOutputStream arg = new ByteArrayOutputStream();
+		for (;;) {
+			int c = in.read();
+			if (c < 0) return null;
+			if (c != 0) {
+				arg.write(c);
+				continue;
+			}
+			if (arg.size() == 0) return args.toArray(new String[0]);
+			args.add(arg.toString(StandardCharsets.UTF_8));
+			arg.reset();
+		}
+	}
+
+	// Sends `args` to the server listening on `socket` and copies the
+	// response to stdout (assembly) or stderr (error). Returns the exit
+	// status for the client process.
+	static int client(String socket, String[] args) throws IOException {
+		ByteArrayOutputStream req = new ByteArrayOutputStream();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			// The server does not share our working directory.
+			if (i > 0 && args[i - 1].equals("-f"))
+				arg = Path.of(arg).toAbsolutePath().toString();
+			req.write(arg.getBytes(StandardCharsets.UTF_8));
+			req.write(0);
+		}
+		req.write(0);
+
+		try (SocketChannel ch = connect(Path.of(socket))) {
+			req.writeTo(Channels.newOutputStream(ch));
+
+			InputStream in = new BufferedInputStream(Channels.newInputStream(ch));
+			StringBuilder header = new StringBuilder();
+			for (int c; (c = in.read()) != '\n';) {
+				if (c < 0) throw new IOException("connection closed by server");
+				header.append((char) c);
+			}
+			String[] fields = header.toString().split(" ");
+			int status = Integer.parseInt(fields[0]);
+			byte[] body = in.readNBytes(Integer.parseInt(fields[1]));
+
+			OutputStream dst = status == 0 ? System.out : System.err;
+			dst.write(body);
+			dst.flush();
+			return status;
+		}
+	}
+
+	// The server may still be starting up; give it a few seconds.
+	private static SocketChannel connect(Path path) throws IOException {
+		UnixDomainSocketAddress addr = UnixDomainSocketAddress.of(path);
+		for (int tries = 0;; tries++) {
+			try {
+				return SocketChannel.open(addr);
+			} catch (IOException e) {
+				if (tries == 100) throw e;
+			}
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+}
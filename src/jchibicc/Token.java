@@ -1,86 +1,399 @@
 package jchibicc;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 class Token {
 	
+	// Every keyword and punctuator has its own kind, assigned once by
+	// the lexer, so the parser can dispatch with == and switch instead
+	// of comparing strings.
 	enum Kind {
 		IDENT,   // Identifiers
-		PUNCT,   // Punctuators
-		KEYWORD, // Keywords
 		NUM,     // Numeric literals
 		EOF,     // End-of-file markers
+
+		// Keywords
+		AUTO("auto"), BREAK("break"), CASE("case"), CHAR("char"),
+		CONST("const"), CONTINUE("continue"), DEFAULT("default"), DO("do"),
+		DOUBLE("double"), ELSE("else"), ENUM("enum"), EXTERN("extern"),
+		FLOAT("float"), FOR("for"), GOTO("goto"), IF("if"),
+		INLINE("inline"), INT("int"), LONG("long"), REGISTER("register"),
+		RESTRICT("restrict"), RETURN("return"), SHORT("short"), SIGNED("signed"),
+		SIZEOF("sizeof"), STATIC("static"), STRUCT("struct"), SWITCH("switch"),
+		TYPEDEF("typedef"), UNION("union"), UNSIGNED("unsigned"), VOID("void"),
+		VOLATILE("volatile"), WHILE("while"), _ALIGNAS("_Alignas"), _ALIGNOF("_Alignof"),
+		_ATOMIC("_Atomic"), _BOOL("_Bool"), _COMPLEX("_Complex"), _GENERIC("_Generic"),
+		_IMAGINARY("_Imaginary"), _NORETURN("_Noreturn"),
+		_STATIC_ASSERT("_Static_assert"), _THREAD_LOCAL("_Thread_local"),
+
+		// Punctuators
+		LBRACKET("["), RBRACKET("]"), LPAREN("("), RPAREN(")"), LBRACE("{"),
+		RBRACE("}"), DOT("."), ARROW("->"), INC("++"), DEC("--"),
+		AMP("&"), STAR("*"), PLUS("+"), MINUS("-"), TILDE("~"),
+		NOT("!"), SLASH("/"), PERCENT("%"), SHL("<<"), SHR(">>"),
+		LT("<"), GT(">"), LE("<="), GE(">="), EQ("=="),
+		NE("!="), XOR("^"), OR("|"), LOGAND("&&"), LOGOR("||"),
+		COND("?"), COLON(":"), SEMICOLON(";"), ELLIPSIS("..."), ASSIGN("="),
+		MUL_ASSIGN("*="), DIV_ASSIGN("/="), MOD_ASSIGN("%="), ADD_ASSIGN("+="), SUB_ASSIGN("-="),
+		SHL_ASSIGN("<<="), SHR_ASSIGN(">>="), AND_ASSIGN("&="), XOR_ASSIGN("^="), OR_ASSIGN("|="),
+		COMMA(","), HASH("#"), HASHHASH("##");
+
+		final String str; // spelling of a keyword or punctuator
+
+		Kind() {
+			this(null);
+		}
+
+		Kind(String str) {
+			this.str = str;
+		}
 	}
 	
-	Kind kind;
-	Token next; // Next token
-	String str; // token string
-	int loc;    // Token location
-	int len;    // Token length
-	int val;    // If kind is TK_NUM, its value
-
-	Token(String value, int start, int end) {
-		this.str = value;
-		this.loc = start;
-		this.len = end - start;
-		if (S.isNumeric(value)) {
-			kind = Kind.NUM;
-			val = Integer.parseInt(value);
-		} else {			
-			if (S.isValidCVariableName(value)) {
-				kind = Kind.IDENT;
-			} else if (S.isValidCPunctuator(value)) {
-				kind = Kind.PUNCT;	
-			} else if (S.isValidCKeyword(value)) {
-				kind = Kind.KEYWORD;
+	private static final Kind[] kinds = Kind.values();
+
+	// Tokens of a translation unit, stored as parallel arrays and
+	// indexed by token number rather than as one object per token.
+	// The parser walks them with an int cursor. Token strings are not
+	// kept; they are read back from the source only when needed.
+	//
+	// Tokens are lexed on demand as the parser asks for them, and the
+	// arrays only hold a window starting at `base`: once the parser
+	// calls release(), earlier tokens are dropped, so memory does not
+	// grow with the size of the input.
+	final ByteBuffer src; // Source code (ASCII/UTF-8 bytes)
+	private final int end;
+	private int pos;      // Where the lexer continues
+
+	private int[] kind = new int[64]; // Kind ordinal
+	private int[] loc = new int[64];  // Token location
+	private int[] len = new int[64];  // Token length
+	private long[] val = new long[64]; // NUM: its value, IDENT: name id
+	private int base;     // Token number of kind[0]
+	private int count;    // Number of tokens in the window
+	private int released; // Tokens below this number may be dropped
+
+	// Identifier names are interned as they are lexed: every distinct
+	// name gets a small id (stored in `val`) and one shared String.
+	private String[] names = new String[64];
+	private int[] name_hash = new int[64];
+	private int[] name_table = new int[256]; // open addressing, id + 1
+	private int nnames;
+
+	private Token(ByteBuffer src) {
+		this.src = src;
+		this.end = src.limit();
+	}
+
+	private void add(Kind k, int start, int end, long v) {
+		if (count == kind.length) {
+			int drop = released - base;
+			if (drop >= count / 2) {
+				// Slide the window instead of growing it.
+				count -= drop;
+				base += drop;
+				System.arraycopy(kind, drop, kind, 0, count);
+				System.arraycopy(loc, drop, loc, 0, count);
+				System.arraycopy(len, drop, len, 0, count);
+				System.arraycopy(val, drop, val, 0, count);
+			} else {
+				int n = count * 2;
+				kind = Arrays.copyOf(kind, n);
+				loc = Arrays.copyOf(loc, n);
+				len = Arrays.copyOf(len, n);
+				val = Arrays.copyOf(val, n);
 			}
 		}
+		kind[count] = k.ordinal();
+		loc[count] = start;
+		len[count] = end - start;
+		val[count] = v;
+		count++;
+	}
+
+	// Returns the position of token `i` in the window, lexing up to it
+	// if the parser is ahead of the lexer.
+	private int at(int i) {
+		while (i >= base + count)
+			lex();
+		if (i < base) S.error("token %d was already released", i);
+		return i - base;
+	}
+
+	// Note: at() may reallocate the arrays, so it has to run before
+	// the array field is read.
+	Kind kind(int i) {
+		int j = at(i);
+		return kinds[kind[j]];
+	}
+
+	int loc(int i) {
+		int j = at(i);
+		return loc[j];
+	}
+
+	long val(int i) {
+		int j = at(i);
+		return val[j];
+	}
+
+	// name id of an identifier token
+	int id(int i) {
+		int j = at(i);
+		return (int) val[j];
+	}
+
+	// The parser no longer needs tokens before `i`.
+	void release(int i) {
+		released = i;
+	}
+
+	// interned name of an identifier token
+	String name(int i) {
+		int j = at(i);
+		return names[(int) val[j]];
+	}
+
+	// token string (only allocated when somebody asks for it)
+	String str(int i) {
+		int j = at(i);
+		return text(loc[j], loc[j] + len[j]);
+	}
+
+	private String text(int start, int end) {
+		byte[] buf = new byte[end - start];
+		src.get(start, buf);
+		return new String(buf, StandardCharsets.UTF_8);
+	}
+
+	// Returns the text of the token that starts at source offset `loc`.
+	// Nodes only remember where their token starts, so error messages
+	// read it back from the source.
+	String str_at(int loc) {
+		int i = loc;
+		if (i < end) {
+			switch (char_class(src.get(i))) {
+			case DIGIT:
+			case ALPHA:
+				while (i < end && is_ident2(src.get(i)))
+					i++;
+				break;
+			case PUNCT:
+				i += read_punct(src, i, end);
+				break;
+			default:
+				break;
+			}
+		}
+		return text(loc, i);
+	}
+
+	// Character classes used by the scanner.
+	private static final byte OTHER = 0;
+	private static final byte SPACE = 1;
+	private static final byte DIGIT = 2;
+	private static final byte ALPHA = 3; // letters and '_'
+	private static final byte PUNCT = 4;
+
+	private static final byte[] char_class = new byte[128];
+
+	static {
+		for (char c : " \t\n\r\f\u000b".toCharArray())
+			char_class[c] = SPACE;
+		for (char c = '0'; c <= '9'; c++)
+			char_class[c] = DIGIT;
+		for (char c = 'a'; c <= 'z'; c++)
+			char_class[c] = ALPHA;
+		for (char c = 'A'; c <= 'Z'; c++)
+			char_class[c] = ALPHA;
+		char_class['_'] = ALPHA;
+		for (char c : "!\"#%&'()*+,-./:;<=>?[\\]^{|}~".toCharArray())
+			char_class[c] = PUNCT;
 	}
-	
-	// just for EOF token
-	Token(Kind kind) {
-		this.str = "";
-		this.kind = kind;
-	}	
 
-	boolean equals(String s) {
-		return this.str.equals(s);
+	private static int char_class(byte c) {
+		return c >= 0 ? char_class[c] : OTHER;
 	}
 
-	@Override
-	public String toString() {
-		return str;
+	private static boolean is_ident2(byte c) {
+		int cls = char_class(c);
+		return cls == ALPHA || cls == DIGIT;
+	}
+
+	// Read a punctuator token from p and returns its length.
+	// Longest match: "<<=" wins over "<<", which wins over "<".
+	private static int read_punct(ByteBuffer p, int i, int end) {
+		byte c = p.get(i);
+		byte c1 = i + 1 < end ? p.get(i + 1) : 0;
+		byte c2 = i + 2 < end ? p.get(i + 2) : 0;
+
+		switch (c) {
+		case '<':
+			if (c1 == '<') return c2 == '=' ? 3 : 2;
+			return c1 == '=' || c1 == ':' || c1 == '%' ? 2 : 1;
+		case '>':
+			if (c1 == '>') return c2 == '=' ? 3 : 2;
+			return c1 == '=' ? 2 : 1;
+		case '-':
+			return c1 == '-' || c1 == '=' || c1 == '>' ? 2 : 1;
+		case '+':
+		case '&':
+		case '|':
+			return c1 == c || c1 == '=' ? 2 : 1;
+		case '#':
+			return c1 == '#' ? 2 : 1;
+		case '.':
+			return c1 == '.' && c2 == '.' ? 3 : 1;
+		case '%':
+			if (c1 == ':') {
+				byte c3 = i + 3 < end ? p.get(i + 3) : 0;
+				return c2 == '%' && c3 == ':' ? 4 : 2;
+			}
+			return c1 == '=' || c1 == '>' ? 2 : 1;
+		case ':':
+			return c1 == '>' ? 2 : 1;
+		case '*':
+		case '/':
+		case '=':
+		case '!':
+		case '^':
+			return c1 == '=' ? 2 : 1;
+		case '[': case ']': case '(': case ')': case '{': case '}':
+		case '~': case '?': case ';': case ',':
+			return 1;
+		default:
+			return 0;
+		}
 	}
 
-	public static Token tokenize(String code) {
-		String regex = "\\w+|[{}();,]|==|<=|>=|!=|\\+\\+|--|&&|\\|\\||\\&|[+\\-*/<>=!\\[\\]]";
+	// Returns the id of the name p[start, end), assigning a new one the
+	// first time a name is seen.
+	private int intern(int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++)
+			h = h * 31 + src.get(i);
+
+		int mask = name_table.length - 1;
+		for (int slot = h & mask;; slot = (slot + 1) & mask) {
+			int id = name_table[slot] - 1;
+			if (id < 0) break;
+			if (name_hash[id] == h && same_name(names[id], start, end)) return id;
+		}
+
+		if (nnames == names.length) {
+			names = Arrays.copyOf(names, nnames * 2);
+			name_hash = Arrays.copyOf(name_hash, nnames * 2);
+		}
+		int id = nnames++;
+		names[id] = text(start, end);
+		name_hash[id] = h;
 
-		Pattern pattern = Pattern.compile(regex);
-		Matcher matcher = pattern.matcher(code);
+		// Keep the table at most half full.
+		if (nnames * 2 > name_table.length) {
+			name_table = new int[name_table.length * 2];
+			for (int k = 0; k < nnames - 1; k++)
+				insert_name(k);
+		}
+		insert_name(id);
+		return id;
+	}
+
+	private void insert_name(int id) {
+		int mask = name_table.length - 1;
+		int slot = name_hash[id] & mask;
+		while (name_table[slot] != 0)
+			slot = (slot + 1) & mask;
+		name_table[slot] = id + 1;
+	}
 
-		List<Token> tokens = new ArrayList<>();
+	private boolean same_name(String name, int start, int end) {
+		if (name.length() != end - start) return false;
+		for (int i = start; i < end; i++)
+			if (src.get(i) != name.charAt(i - start)) return false;
+		return true;
+	}
+
+	// Read the next token from the source and append it to the window.
+	// At the end of input, every call appends another EOF token.
+	private void lex() {
+		ByteBuffer p = src;
+		int i = pos;
+
+		while (i < end) {
+			byte c = p.get(i);
+
+			switch (char_class(c)) {
+			case SPACE:
+				i++;
+				continue;
+
+			// Numeric literal
+			case DIGIT: {
+				int start = i;
+				long val = 0;
+				while (i < end && char_class(p.get(i)) == DIGIT) {
+					int d = p.get(i++) - '0';
+					if (val > (Long.MAX_VALUE - d) / 10) S.error_tok(start, "integer literal is too large");
+					val = val * 10 + d;
+				}
+				add(Kind.NUM, start, i, val);
+				pos = i;
+				return;
+			}
+
+			// Identifier or keyword
+			case ALPHA: {
+				int start = i++;
+				while (i < end && is_ident2(p.get(i)))
+					i++;
+				Kind kind = S.keyword(p, start, i - start);
+				if (kind != null) add(kind, start, i, 0);
+				else add(Kind.IDENT, start, i, intern(start, i));
+				pos = i;
+				return;
+			}
+
+			// Punctuators
+			case PUNCT: {
+				int len = read_punct(p, i, end);
+				if (len > 0) {
+					add(S.punct(p, i, len), i, i + len, 0);
+					pos = i + len;
+					return;
+				}
+				break;
+			}
+			default:
+				break;
+			}
+
+			S.error("invalid token: '%c' at %d\n", (char) (c & 0xff), i);
+		}
+
+		pos = end;
+		add(Kind.EOF, end, end, 0);
+	}
+
+	// Tokenize a given string. Tokens are produced as they are read.
+	public static Token tokenize(String p) {
+		return new Token(ByteBuffer.wrap(p.getBytes(StandardCharsets.UTF_8)));
+	}
 
-		Token last = null;
-		while (matcher.find()) {			
-			String token = matcher.group();
-			int start = matcher.start();
-			int end = matcher.end();
-			
-			// each token points to the next
-			Token newToken = new Token(token, start, end);
-			if (last != null) last.next = newToken;
-			tokens.add(newToken);
-			last = newToken;
+	// Tokenize a source file. The file is memory-mapped and lexed
+	// straight from the mapping, without copying it into a String.
+	public static Token tokenize_file(String path) {
+		try (FileChannel ch = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+			long size = ch.size();
+			if (size > Integer.MAX_VALUE) S.error("%s: file too large\n", path);
+			return new Token(ch.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		} catch (IOException e) {
+			S.error("cannot open %s: %s\n", path, e.getMessage());
+			return null;
 		}
-		
-		// eof token
-		Token newToken = new Token(Token.Kind.EOF);
-		if (last != null) last.next = newToken;		
-		tokens.add(newToken);
-		
-		return tokens.get(0);
 	}
 }
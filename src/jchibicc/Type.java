@@ -1,5 +1,19 @@
 package jchibicc;
 
+import java.util.HashMap;
+import java.util.List;
+
+// Types are hash-consed: pointer_to, array_of and func_type return the
+// one canonical instance for each distinct type, so two types are the
+// same type exactly when they are the same object, and the number of
+// Type objects is bounded by the number of distinct types no matter
+// how large the program is. The canonical instances are kept in a
+// Table that belongs to one compilation, so a resident compiler does
+// not accumulate the types of every unit it has seen. Only ty_char
+// and ty_int are shared by all compilations. No type may be modified.
+//
+// Declarations therefore keep their names outside of the type (see
+// Parser.declarator).
 class Type {
 	enum Kind {
 		CHAR, INT, PTR, FUNC, ARRAY,
@@ -20,16 +34,12 @@ class Type {
 	// the C spec.
 	Type base;
 
-	// Declaration
-	Token name;
-
 	// Array
 	int array_len;
 
 	// Function type
 	Type return_ty;
-	Type params;
-	Type next;	
+	Type[] params;
 
 	Type() {
 	}
@@ -38,12 +48,52 @@ class Type {
 		this.kind = kind;
 		this.size = size;
 	}	
-	
+
+	// Structural identity of a derived type. Its components are
+	// canonical themselves, so identity comparison is all the record's
+	// equals() needs.
+	private record Key(Kind kind, Type base, int len, List<Type> params) {
+	}
+
+	// The derived types of one compilation.
+	static class Table {
+		private final HashMap<Key, Type> canon = new HashMap<>();
+
+		Type pointer_to(Type base) {
+			return canon.computeIfAbsent(new Key(Kind.PTR, base, 0, null), k -> {
+				Type ty = new Type();
+				ty.kind = Kind.PTR;
+				ty.size = 8;
+				ty.base = base;
+				return ty;
+			});
+		}
+
+		Type func_type(Type return_ty, Type[] params) {
+			return canon.computeIfAbsent(new Key(Kind.FUNC, return_ty, 0, List.of(params)), k -> {
+				Type ty = new Type();
+				ty.kind = Kind.FUNC;
+				ty.return_ty = return_ty;
+				ty.params = params;
+				return ty;
+			});
+		}
+
+		Type array_of(Type base, int len) {
+			return canon.computeIfAbsent(new Key(Kind.ARRAY, base, len, null), k -> {
+				Type ty = new Type();
+				ty.kind = Kind.ARRAY;
+				ty.size = base.size * len;
+				ty.base = base;
+				ty.array_len = len;
+				return ty;
+			});
+		}
+	}
+
 	@Override
 	public String toString() {
-		if (name != null && kind != null) return name.toString() + " " + kind.toString();
-		else if (name != null) return name.toString();
-		else if (kind != null) return kind.toString();
+		if (kind != null) return kind.toString();
 		else return super.toString();
 	}
 
@@ -54,57 +104,21 @@ class Type {
 		return ty.kind == Kind.CHAR || ty.kind == Kind.INT;
 	}
 
-	static Type copy_type(Type ty) {
-	  Type ret = new Type();
-	  ret.kind = ty.kind;
-	  ret.size = ty.size;
-	  ret.name = ty.name;
-	  ret.base = ty.base;
-	  ret.next = ty.next;
-	  ret.params = ty.params;
-	  ret.return_ty = ty.return_ty;
-	  return ret;
-	}	
-
-	static Type pointer_to(Type base) {
-		Type ty = new Type();
-		ty.kind = Kind.PTR;
-		ty.size = 8;
-		ty.base = base;
-		return ty;
-	}
-
-	static Type func_type(Type return_ty) {
-		Type ty = new Type();
-		ty.kind = Kind.FUNC;
-		ty.return_ty = return_ty;
-		return ty;
-	}
-
-	static Type array_of(Type base, int len) {
-		  Type ty = new Type();
-		  ty.kind = Kind.ARRAY;
-		  ty.size = base.size * len;
-		  ty.base = base;
-		  ty.array_len = len;
-		  return ty;
-		}
-	
-	static void add_type(Node node) {
+	static void add_type(Table types, Node node) {
 		if (node == null || node.ty != null) return;
 
-		add_type(node.lhs);
-		add_type(node.rhs);
-		add_type(node.cond);
-		add_type(node.then);
-		add_type(node.els);
-		add_type(node.init);
-		add_type(node.inc);
+		add_type(types, node.lhs);
+		add_type(types, node.rhs);
+		add_type(types, node.cond);
+		add_type(types, node.then);
+		add_type(types, node.els);
+		add_type(types, node.init);
+		add_type(types, node.inc);
 
 		for (Node n = node.body; n != null; n = n.next)
-			add_type(n);
+			add_type(types, n);
 		for (Node n = node.args; n != null; n = n.next)
-		    add_type(n);		
+		    add_type(types, n);		
 
 		switch (node.kind) {
 		case ADD:
@@ -116,7 +130,7 @@ class Type {
 		    return;			
 		case ASSIGN:
 		    if (node.lhs.ty.kind == Kind.ARRAY)
-		        S.error("%s not an lvalue", node.lhs.token);			
+		        S.error_tok(node.lhs.token, "not an lvalue");			
 			node.ty = node.lhs.ty;
 			return;
 		case EQ:
@@ -132,12 +146,12 @@ class Type {
 			return;
 		case ADDR:
 		    if (node.lhs.ty.kind == Kind.ARRAY)
-		        node.ty = pointer_to(node.lhs.ty.base);
-		      else node.ty = pointer_to(node.lhs.ty);
+		        node.ty = types.pointer_to(node.lhs.ty.base);
+		      else node.ty = types.pointer_to(node.lhs.ty);
 			return;
 		case DEREF:
 			if (node.lhs.ty.base == null) 
-				S.error("%s invalid pointer dereference", node.token.toString());
+				S.error_tok(node.token, "invalid pointer dereference");
 			node.ty = node.lhs.ty.base;
 			return;
 		default:
@@ -0,0 +1,317 @@
+package jchibicc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Loop unrolling.
+//
+// A FOR loop of the form
+//
+//   for (i = a; i < b; i = i + c) body
+//
+// where a, b and c are constants, i is an integer local that the body
+// does not assign, and the condition is one of <, <=, > and >= against
+// b, runs a number of times that is known here. Each copy of the body
+// saves the compare and the branch of an iteration, and the copies
+// see i as a constant or as i plus a constant, which the addressing
+// modes absorb: a[i+1] is a load from 8(base,i,8).
+//
+// A loop of at most MAX_FULL iterations is replaced by that many
+// copies of its body, with i replaced by its value in each:
+//
+//   { body[a]; body[a+c]; ...; i = a+n*c; }
+//
+// A longer loop is unrolled `factor` times, and the original loop
+// runs the iterations that are left:
+//
+//   i = a;
+//   for (; i < m; i = i + factor*c) { body[i]; body[i+c]; ... }
+//   for (; i < b; i = i + c) body
+//
+// The copies of a loop may not take more than BUDGET AST nodes; the
+// factor is lowered to fit, and a loop is left alone if even two
+// copies do not. Inner loops are unrolled first, so their copies
+// count towards the size of the loop around them.
+//
+// Runs before DeadCode, which removes the final store to i when
+// nothing reads it.
+class Unroll {
+
+	// The most iterations a loop is fully unrolled for.
+	static final int MAX_FULL = 16;
+
+	// The largest size, in AST nodes, of all the copies of a body.
+	static final int BUDGET = 400;
+
+	private final Obj fn;
+	private final int factor;
+	private final List<String> report;
+
+	private Unroll(Obj fn, int factor, List<String> report) {
+		this.fn = fn;
+		this.factor = factor;
+		this.report = report;
+	}
+
+	// Unrolls the loops of all functions in `prog`, partially by
+	// `factor`. Returns a line for each loop that was unrolled, for
+	// -funroll-report.
+	static List<String> unroll(Obj prog, int factor) {
+		List<String> report = new ArrayList<>();
+		for (Obj fn = prog; fn != null; fn = fn.next)
+			if (fn.is_function && !Assembly.takes_local_address(fn.body))
+				fn.body = new Unroll(fn, factor, report).stmt(fn.body);
+		return report;
+	}
+
+	// Unrolls the loops in the statement `node` and returns the node
+	// that replaces it.
+	private Node stmt(Node node) {
+		if (node == null) return null;
+		switch (node.kind) {
+		case BLOCK: {
+			Node head = new Node();
+			Node cur = head;
+			for (Node n = node.body; n != null;) {
+				Node next = n.next;
+				cur = cur.next = stmt(n);
+				cur.next = null;
+				n = next;
+			}
+			node.body = head.next;
+			return node;
+		}
+		case IF:
+			node.then = stmt(node.then);
+			node.els = stmt(node.els);
+			return node;
+		case FOR:
+			node.then = stmt(node.then);
+			return loop(node);
+		default:
+			return node;
+		}
+	}
+
+	private Node loop(Node node) {
+		// init is i = a.
+		Node init = node.init;
+		if (init == null || init.kind != Node.Kind.EXPR_STMT || init.lhs.kind != Node.Kind.ASSIGN)
+			return node;
+		Node lhs = init.lhs.lhs;
+		if (lhs.kind != Node.Kind.VAR || !lhs.var.is_local || lhs.var.ty.kind != Type.Kind.INT
+				|| !is_const(init.lhs.rhs))
+			return node;
+		Obj iv = lhs.var;
+		long start = init.lhs.rhs.val;
+
+		// inc is i = i + c, i = c + i or i = i - c.
+		Node inc = node.inc;
+		if (inc == null || inc.kind != Node.Kind.ASSIGN || !is_var(inc.lhs, iv)) return node;
+		Node rhs = inc.rhs;
+		long step;
+		if (rhs.kind == Node.Kind.ADD && is_var(rhs.lhs, iv) && is_const(rhs.rhs))
+			step = rhs.rhs.val;
+		else if (rhs.kind == Node.Kind.ADD && is_var(rhs.rhs, iv) && is_const(rhs.lhs))
+			step = rhs.lhs.val;
+		else if (rhs.kind == Node.Kind.SUB && is_var(rhs.lhs, iv) && is_const(rhs.rhs))
+			step = -rhs.rhs.val;
+		else
+			return node;
+
+		long n = trip_count(node.cond, iv, start, step);
+		if (n < 0 || assigns(node.then, iv)) return node;
+
+		int size = Inline.size(node.then);
+		if (n <= MAX_FULL && n * size <= BUDGET) {
+			report.add(fn.name + ": loop on " + iv.name + ", " + n + " iterations, fully unrolled");
+			return full(node, iv, start, step, n);
+		}
+
+		int k = (int) Math.min(Math.min(factor, n), BUDGET / Math.max(size, 1));
+		if (k < 2) return node;
+		report.add(fn.name + ": loop on " + iv.name + ", " + n + " iterations, unrolled by " + k);
+		return partial(node, iv, start, step, n, k);
+	}
+
+	// The number of iterations of a loop on `iv` from `start` by `step`
+	// while `cond` holds, or -1 if it is not known.
+	private static long trip_count(Node cond, Obj iv, long start, long step) {
+		if (cond == null || (cond.kind != Node.Kind.LT && cond.kind != Node.Kind.LE)) return -1;
+		if (step == 0) return -1;
+
+		// i < b, i <= b going up; b < i, b <= i going down.
+		long span;
+		if (is_var(cond.lhs, iv) && is_const(cond.rhs) && step > 0)
+			span = cond.rhs.val - start;
+		else if (is_const(cond.lhs) && is_var(cond.rhs, iv) && step < 0)
+			span = start - cond.lhs.val;
+		else
+			return -1;
+		if (cond.kind == Node.Kind.LE) span++;
+		if (span <= 0) return 0;
+		return (span + Math.abs(step) - 1) / Math.abs(step);
+	}
+
+	// { body[a]; body[a+c]; ...; i = a+n*c; }
+	private Node full(Node node, Obj iv, long start, long step, long n) {
+		Node head = new Node();
+		Node cur = head;
+		for (long j = 0; j < n; j++)
+			cur = cur.next = Fold.fold(copy(node.then, iv, num(start + j * step, node)));
+		cur.next = assign(iv, num(start + n * step, node));
+		return block(head.next, node);
+	}
+
+	// { i = a; for (; i < m; i = i + k*c) { body[i]; ...; body[i+(k-1)*c]; } for (; cond; inc) body }
+	private Node partial(Node node, Obj iv, long start, long step, long n, int k) {
+		Node head = new Node();
+		Node cur = head;
+		for (int j = 0; j < k; j++) {
+			Node at = j == 0 ? var(iv, node) : add(var(iv, node), num(j * step, node), node);
+			cur = cur.next = Fold.fold(copy(node.then, iv, at));
+		}
+
+		// i < m going up, m < i going down, with m the value of i after
+		// the last full round.
+		long end = start + n / k * k * step;
+		Node cond = new Node();
+		cond.kind = Node.Kind.LT;
+		cond.token = node.token;
+		cond.lhs = step > 0 ? var(iv, node) : num(end, node);
+		cond.rhs = step > 0 ? num(end, node) : var(iv, node);
+		cond.ty = Type.ty_int;
+
+		Node unrolled = new Node();
+		unrolled.kind = Node.Kind.FOR;
+		unrolled.token = node.token;
+		unrolled.cond = cond;
+		unrolled.inc = assign_expr(iv, add(var(iv, node), num(k * step, node), node));
+		unrolled.then = block(head.next, node);
+
+		Node init = node.init;
+		node.init = null;
+		init.next = unrolled;
+		unrolled.next = n % k != 0 ? node : null;
+		node.next = null;
+		return block(init, node);
+	}
+
+	// Deep copy of `node`.
+	static Node copy(Node node) {
+		return copy(node, null, null);
+	}
+
+	// Deep copy of `node` with `iv` replaced by `val`.
+	private static Node copy(Node node, Obj iv, Node val) {
+		if (node == null) return null;
+		if (is_var(node, iv)) return copy(val, null, null);
+
+		Node n = new Node();
+		n.kind = node.kind;
+		n.ty = node.ty;
+		n.token = node.token;
+		n.lhs = copy(node.lhs, iv, val);
+		n.rhs = copy(node.rhs, iv, val);
+		n.cond = copy(node.cond, iv, val);
+		n.then = copy(node.then, iv, val);
+		n.els = copy(node.els, iv, val);
+		n.init = copy(node.init, iv, val);
+		n.inc = copy(node.inc, iv, val);
+		n.body = copy_list(node.body, iv, val);
+		n.decls = node.decls;
+		n.lanes = node.lanes;
+		n.funcname = node.funcname;
+		n.args = copy_list(node.args, iv, val);
+		n.var = node.var;
+		n.val = node.val;
+		return n;
+	}
+
+	private static Node copy_list(Node node, Obj iv, Node val) {
+		Node head = new Node();
+		Node cur = head;
+		for (Node n = node; n != null; n = n.next)
+			cur = cur.next = copy(n, iv, val);
+		return head.next;
+	}
+
+	// Whether `node` assigns `var`.
+	private static boolean assigns(Node node, Obj var) {
+		if (node == null) return false;
+		if (node.kind == Node.Kind.ASSIGN && is_var(node.lhs, var)) return true;
+		if (assigns(node.lhs, var) || assigns(node.rhs, var) || assigns(node.cond, var)
+				|| assigns(node.then, var) || assigns(node.els, var) || assigns(node.init, var)
+				|| assigns(node.inc, var))
+			return true;
+		for (Node n = node.body; n != null; n = n.next)
+			if (assigns(n, var)) return true;
+		for (Node n = node.args; n != null; n = n.next)
+			if (assigns(n, var)) return true;
+		return false;
+	}
+
+	// Whether `node` is a literal that leaves room to count in 64 bits.
+	private static boolean is_const(Node node) {
+		return node.kind == Node.Kind.NUM && node.val >= Integer.MIN_VALUE && node.val <= Integer.MAX_VALUE;
+	}
+
+	private static boolean is_var(Node node, Obj var) {
+		return node != null && node.kind == Node.Kind.VAR && node.var == var;
+	}
+
+	private static Node var(Obj var, Node at) {
+		Node n = new Node();
+		n.kind = Node.Kind.VAR;
+		n.token = at.token;
+		n.var = var;
+		n.ty = var.ty;
+		return n;
+	}
+
+	private static Node num(long val, Node at) {
+		Node n = new Node();
+		n.kind = Node.Kind.NUM;
+		n.token = at.token;
+		n.val = val;
+		n.ty = Type.ty_int;
+		return n;
+	}
+
+	private static Node add(Node lhs, Node rhs, Node at) {
+		Node n = new Node();
+		n.kind = Node.Kind.ADD;
+		n.token = at.token;
+		n.lhs = lhs;
+		n.rhs = rhs;
+		n.ty = lhs.ty;
+		return n;
+	}
+
+	// var = val;
+	private static Node assign(Obj var, Node val) {
+		Node stmt = new Node();
+		stmt.kind = Node.Kind.EXPR_STMT;
+		stmt.token = val.token;
+		stmt.lhs = assign_expr(var, val);
+		return stmt;
+	}
+
+	private static Node assign_expr(Obj var, Node val) {
+		Node n = new Node();
+		n.kind = Node.Kind.ASSIGN;
+		n.token = val.token;
+		n.lhs = var(var, val);
+		n.rhs = val;
+		n.ty = var.ty;
+		return n;
+	}
+
+	private static Node block(Node body, Node at) {
+		Node n = new Node();
+		n.kind = Node.Kind.BLOCK;
+		n.token = at.token;
+		n.body = body;
+		return n;
+	}
+}
@@ -0,0 +1,241 @@
+package jchibicc;
+
+// Vectorization of element-wise array loops.
+//
+// An innermost loop
+//
+//   for (i = a; i < b; i = i + 1) { x[i] = y[i] + z[i] - ...; ... }
+//
+// whose body only stores sums and differences of elements of arrays
+// to elements of arrays, all at index i and all of the same type, char
+// or int, works on 16 bytes at once in the %xmm registers: 16 chars
+// with paddb/psubb, or 2 ints with paddq/psubq. The loop becomes
+//
+//   i = a;
+//   for (; i < b-(n-1); i = i + n) body   // n lanes at a time
+//   for (; i < b; i = i + 1) body         // what is left
+//
+// where the first loop's `lanes` is n, see Assembly.gen_vector(). The
+// bound b is a constant or a scalar variable; i <= b works the same.
+// For a variable, b-(n-1) is computed once into a new local.
+//
+// The arrays must be arrays by name, local or global, not pointers.
+// Two of them never overlap, and every access is at exactly i, so
+// lane k of a statement only depends on lane k of the statements
+// before it, as in the scalar loop.
+//
+// The SSA backend has no vector instructions; Main only runs this
+// pass for Assembly.
+class Vectorize {
+
+	// The deepest sum that is vectorized. A sum of depth d needs d+1
+	// of the 16 %xmm registers.
+	static final int MAX_DEPTH = 8;
+
+	private final Obj fn;
+	private int ntemps;
+
+	private Vectorize(Obj fn) {
+		this.fn = fn;
+	}
+
+	static void vectorize(Obj prog) {
+		for (Obj fn = prog; fn != null; fn = fn.next)
+			if (fn.is_function && !Assembly.takes_local_address(fn.body))
+				fn.body = new Vectorize(fn).stmt(fn.body);
+	}
+
+	// Vectorizes the loops in the statement `node` and returns the node
+	// that replaces it.
+	private Node stmt(Node node) {
+		if (node == null) return null;
+		switch (node.kind) {
+		case BLOCK: {
+			Node head = new Node();
+			Node cur = head;
+			for (Node n = node.body; n != null;) {
+				Node next = n.next;
+				cur = cur.next = stmt(n);
+				cur.next = null;
+				n = next;
+			}
+			node.body = head.next;
+			return node;
+		}
+		case IF:
+			node.then = stmt(node.then);
+			node.els = stmt(node.els);
+			return node;
+		case FOR:
+			node.then = stmt(node.then);
+			return loop(node);
+		default:
+			return node;
+		}
+	}
+
+	private Node loop(Node node) {
+		// i < b or i <= b, with b a constant or a variable other than i.
+		Node cond = node.cond;
+		if (cond == null || (cond.kind != Node.Kind.LT && cond.kind != Node.Kind.LE)) return node;
+		if (cond.lhs.kind != Node.Kind.VAR) return node;
+		Obj iv = cond.lhs.var;
+		if (!iv.is_local || iv.ty.kind != Type.Kind.INT) return node;
+		Node bound = cond.rhs;
+		if (!(bound.kind == Node.Kind.NUM && bound.val == (int) bound.val
+				|| bound.kind == Node.Kind.VAR && bound.var != iv && bound.var.ty.kind == Type.Kind.INT))
+			return node;
+
+		// i = i + 1 or i = 1 + i
+		Node inc = node.inc;
+		if (inc == null || inc.kind != Node.Kind.ASSIGN || !is_var(inc.lhs, iv)) return node;
+		if (!(inc.rhs.kind == Node.Kind.ADD
+				&& (is_var(inc.rhs.lhs, iv) && is_one(inc.rhs.rhs) || is_one(inc.rhs.lhs) && is_var(inc.rhs.rhs, iv))))
+			return node;
+
+		Type ty = body_type(node.then, iv);
+		if (ty == null) return node;
+		int lanes = 16 / ty.size;
+
+		// { init; vector loop; scalar loop }
+		Node head = new Node();
+		Node cur = head;
+		if (node.init != null) cur = cur.next = node.init;
+		node.init = null;
+
+		// The vector loop runs while all of i, ..., i+lanes-1 are in
+		// range.
+		Node vcond = new Node();
+		vcond.kind = cond.kind;
+		vcond.token = cond.token;
+		vcond.ty = cond.ty;
+		vcond.lhs = var(iv, node);
+		if (bound.kind == Node.Kind.NUM) {
+			vcond.rhs = num(bound.val - (lanes - 1), node);
+		} else {
+			Node sub = new Node();
+			sub.kind = Node.Kind.SUB;
+			sub.token = node.token;
+			sub.ty = Type.ty_int;
+			sub.lhs = var(bound.var, node);
+			sub.rhs = num(lanes - 1, node);
+
+			Obj limit = fn.new_local(".vec." + ntemps++, Type.ty_int);
+			Node assign = new Node();
+			assign.kind = Node.Kind.ASSIGN;
+			assign.token = node.token;
+			assign.ty = limit.ty;
+			assign.lhs = var(limit, node);
+			assign.rhs = sub;
+			cur = cur.next = new Node();
+			cur.kind = Node.Kind.EXPR_STMT;
+			cur.token = node.token;
+			cur.lhs = assign;
+			vcond.rhs = var(limit, node);
+		}
+
+		Node vinc = new Node();
+		vinc.kind = Node.Kind.ASSIGN;
+		vinc.token = inc.token;
+		vinc.ty = iv.ty;
+		vinc.lhs = var(iv, node);
+		vinc.rhs = new Node();
+		vinc.rhs.kind = Node.Kind.ADD;
+		vinc.rhs.token = inc.token;
+		vinc.rhs.ty = Type.ty_int;
+		vinc.rhs.lhs = var(iv, node);
+		vinc.rhs.rhs = num(lanes, node);
+
+		Node vloop = new Node();
+		vloop.kind = Node.Kind.FOR;
+		vloop.token = node.token;
+		vloop.cond = vcond;
+		vloop.inc = vinc;
+		vloop.then = Unroll.copy(node.then);
+		vloop.lanes = lanes;
+
+		cur = cur.next = vloop;
+		cur.next = node;
+		node.next = null;
+
+		Node block = new Node();
+		block.kind = Node.Kind.BLOCK;
+		block.token = node.token;
+		block.body = head.next;
+		return block;
+	}
+
+	// The element type of the loop body `node`, if it only assigns
+	// sums of array elements at `iv` to array elements at `iv`, or null.
+	private static Type body_type(Node node, Obj iv) {
+		if (node.kind == Node.Kind.BLOCK) {
+			Type ty = null;
+			for (Node n = node.body; n != null; n = n.next) {
+				Type t = body_type(n, iv);
+				if (t == null || ty != null && t.kind != ty.kind) return null;
+				ty = t;
+			}
+			return ty;
+		}
+
+		if (node.kind != Node.Kind.EXPR_STMT || node.lhs.kind != Node.Kind.ASSIGN) return null;
+		Node assign = node.lhs;
+		Type ty = element_type(assign.lhs, iv);
+		if (ty == null || !is_sum(assign.rhs, iv, ty, MAX_DEPTH)) return null;
+		return ty;
+	}
+
+	// Whether `node` is a sum or difference of elements of type `ty` at
+	// `iv`, no deeper than `depth`.
+	private static boolean is_sum(Node node, Obj iv, Type ty, int depth) {
+		if (depth < 0) return false;
+		if (node.kind == Node.Kind.ADD || node.kind == Node.Kind.SUB)
+			return Type.is_integer(node.ty) && is_sum(node.lhs, iv, ty, depth - 1)
+					&& is_sum(node.rhs, iv, ty, depth - 1);
+		Type t = element_type(node, iv);
+		return t != null && t.kind == ty.kind;
+	}
+
+	// The type of `node` if it is x[iv], with x an array of char or
+	// int, or null. x[iv] is *(x + iv*size), or *(x + iv) for chars.
+	private static Type element_type(Node node, Obj iv) {
+		if (node.kind != Node.Kind.DEREF || node.lhs.kind != Node.Kind.ADD) return null;
+		Node array = node.lhs.lhs;
+		Node idx = node.lhs.rhs;
+		if (array.kind != Node.Kind.VAR || array.ty.kind != Type.Kind.ARRAY) return null;
+
+		Type ty = array.ty.base;
+		if (ty.kind != Type.Kind.CHAR && ty.kind != Type.Kind.INT || node.ty.kind != ty.kind) return null;
+		if (ty.size == 1 && is_var(idx, iv)) return ty;
+		if (idx.kind == Node.Kind.MUL && is_var(idx.lhs, iv) && idx.rhs.kind == Node.Kind.NUM
+				&& idx.rhs.val == ty.size)
+			return ty;
+		return null;
+	}
+
+	private static boolean is_var(Node node, Obj var) {
+		return node.kind == Node.Kind.VAR && node.var == var;
+	}
+
+	private static boolean is_one(Node node) {
+		return node.kind == Node.Kind.NUM && node.val == 1;
+	}
+
+	private static Node var(Obj var, Node at) {
+		Node n = new Node();
+		n.kind = Node.Kind.VAR;
+		n.token = at.token;
+		n.var = var;
+		n.ty = var.ty;
+		return n;
+	}
+
+	private static Node num(long val, Node at) {
+		Node n = new Node();
+		n.kind = Node.Kind.NUM;
+		n.token = at.token;
+		n.val = val;
+		n.ty = Type.ty_int;
+		return n;
+	}
+}
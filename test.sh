@@ -8,14 +8,36 @@ int sub(int x, int y) { return x-y; }
 int add6(int a, int b, int c, int d, int e, int f) {
   return a+b+c+d+e+f;
 }
+
+long div64(long x, long y) { return x/y; }
+long mul64(long x, long y) { return (unsigned long)x*y; }
 EOF
 
+javac -d bin src/jchibicc/*.java || exit
+
+# One compiler JVM answers every test, over stdin/stdout (see Server.java).
+# Options in $JCCFLAGS are passed with each test, e.g.
+#   JCCFLAGS=-fno-regalloc ./test.sh
+#   JCCFLAGS=-fssa ./test.sh
+coproc JCC { java -cp bin jchibicc.Main -server -; }
+
+compile() {
+  printf '%s\0' $JCCFLAGS "$1" >&${JCC[1]}
+  printf '\0' >&${JCC[1]}
+  read -r status len <&${JCC[0]} || exit
+  IFS= read -r -N "$len" out <&${JCC[0]}
+  if [ "$status" != 0 ]; then
+    printf '%s' "$out" >&2
+    exit 1
+  fi
+  printf '%s' "$out"
+}
+
 assert() {
   expected="$1"
   input="$2"
 
-  javac -d bin src/jchibicc/*.java 
-  java -cp bin jchibicc.Main "$input" > tmp.s || exit
+  compile "$input" > tmp.s || exit
   gcc -static -o tmp tmp.s tmp2.o
   ./tmp
   actual="$?"
@@ -38,6 +60,9 @@ assert 4 'int main() { return (3+5)/2; }'
 assert 10 'int main() { return -10+20; }'
 assert 10 'int main() { return - -10; }'
 assert 10 'int main() { return - - +10; }'
+assert 1 'int main() { int x=3000000000; return x>0; }'
+assert 4 'int main() { return 4294967301/1000000000; }'
+assert 9 'int main() { return 9223372036854775807/1000000000000000000; }'
 
 assert 0 'int main() { return 0==1; }'
 assert 1 'int main() { return 42==42; }'
@@ -172,4 +197,182 @@ assert 1 'int main() { char x; return sizeof(x); }'
 assert 10 'int main() { char x[10]; return sizeof(x); }'
 assert 1 'int main() { return sub_char(7, 3, 3); } int sub_char(char a, char b, char c) { return a-b-c; }'
 
+assert 2 'int main() { int x=2; { int x=3; } return x; }'
+assert 2 'int main() { int x=2; { int x=3; } { int y=4; return x; }}'
+assert 3 'int main() { int x=2; { x=3; } return x; }'
+assert 5 'int x; int main() { int x=5; return x; }'
+assert 3 'int x; int main() { { int x=5; } x=3; return x; }'
+
+assert 72 'int main() { int a[2][3]; int b[2][3]; return sizeof(b) + sizeof(*a); }'
+assert 24 'int main() { char *x[3]; char *y[3]; return sizeof(y); }'
+assert 7 'int main() { int a[2]; int *p=a; int *q=&a[1]; *p=3; *q=4; return a[0]+a[1]; }'
+assert 5 'int main() { return f(2, 3); } int f(int *x, int y) { return g(x, y); } int g(int *x, int y) { return 5; }'
+
+assert 4 'int main() { return (2147483647+2147483647+2)/1073741824; }'
+assert 1 'int main() { return 2147483647*2 > 0; }'
+assert 3 'int main() { int x=3; return x*1+0; }'
+assert 0 'int main() { int x=3; return x*0; }'
+assert 7 'int main() { int x=3; x*0+(x=7)*0; return x; }'
+assert 5 'int main() { if (1-1) return 3; else return 5; }'
+assert 3 'int main() { if (2*3==6) return 3; return 5; }'
+assert 5 'int main() { if (0) return 3; return 5; }'
+assert 8 'int main() { int x=1; if (0) x=2; return 8; }'
+assert 4 'int main() { int a[3]; a[2]=4; return *(a+2*1+0); }'
+assert 3 'int main() { int i=0; while (1) { i=i+1; if (i==3) return i; } }'
+assert 3 'int main() { return 7/2; }'
+
+assert 127 'int main() { return 1+2*(3+4*(5+6*(7+8*(9-ret3()*ret5()/4)))); }'
+assert 45 'int main() { return (1+(2+(3+(4+(5+(6+(7+(8+9)))))))); }'
+assert 45 'int main() { return ((((((((1+2)+3)+4)+5)+6)+7)+8)+9); }'
+assert 45 'int main() { return (1+2)+((3+4)+((5+6)+((7+8)+9))); }'
+assert 6 'int main() { return 10 - add(1, 2*ret3()) + ret3(); }'
+assert 2 'int main() { return (ret5()-ret3())*(add(1,2)-add(1,1))/(1+0*ret3()); }'
+assert 1 'int main() { int x=3; return x < x+1*(x+1); }'
+assert 0 'int main() { int x=3; return x+1*(x+1) <= x; }'
+assert 21 'int main() { return add6(1,2,3,4,5,add(ret3(),3)); }'
+assert 7 'int main() { int a[2]; int i=1; a[i*(i+0)]=7; return a[1]; }'
+
+assert 128 'int main() { int x=1; return (((((((x+x)+(x+x))+((x+x)+(x+x)))+(((x+x)+(x+x))+((x+x)+(x+x))))+((((x+x)+(x+x))+((x+x)+(x+x)))+(((x+x)+(x+x))+((x+x)+(x+x)))))+(((((x+x)+(x+x))+((x+x)+(x+x)))+(((x+x)+(x+x))+((x+x)+(x+x))))+((((x+x)+(x+x))+((x+x)+(x+x)))+(((x+x)+(x+x))+((x+x)+(x+x))))))+((((((x+x)+(x+x))+((x+x)+(x+x)))+(((x+x)+(x+x))+((x+x)+(x+x))))+((((x+x)+(x+x))+((x+x)+(x+x)))+(((x+x)+(x+x))+((x+x)+(x+x)))))+(((((x+x)+(x+x))+((x+x)+(x+x)))+(((x+x)+(x+x))+((x+x)+(x+x))))+((((x+x)+(x+x))+((x+x)+(x+x)))+(((x+x)+(x+x))+((x+x)+(x+x))))))); }'
+
+assert 55 'int main() { return fib(10); } int fib(int n) { if (n<=1) return n; return fib(n-1)+fib(n-2); }'
+assert 21 'int main() { int a=1; int b=2; int c=3; int d=4; int e=5; int f=6; return a+b+c+d+e+f; }'
+assert 28 'int main() { int a=1; int b=2; int c=3; int d=4; int e=5; int f=6; int g=7; g=a+b+c+d+e+f+g; return g; }'
+assert 45 'int main() { int s=0; int i; for (i=0; i<10; i=i+1) s=s+i; return s; }'
+assert 44 'int main() { char c=300; return c; }'
+assert 252 'int main() { return f(-5) + 1; } int f(char c) { char d=c; return d; }'
+assert 15 'int main() { int x=5; return add(x, ret5()) + x; }'
+assert 10 'int main() { return f(1,2,3,4); } int f(int a, int b, int c, int d) { int t=ret3(); return a+b+c+d+t-ret3(); }'
+
+assert 21 'int main() { int a=1; int b=2; int t; int i; for (i=0; i<5; i=i+1) { t=a; a=b; b=t; } return a*10+b; }'
+assert 9 'int main() { int s=0; int i; for (i=0; i<10; i=i+1) { if (i==3) s=s+2; else if (i<5) s=s+i; } return s; }'
+assert 3 'int main() { int x; int i; for (i=0; i<3; i=i+1) x=i; return x+1; }'
+assert 6 'int main() { int i=0; int j=0; while (i<3) { int k=0; while (k<2) { j=j+1; k=k+1; } i=i+1; } return j; }'
+assert 10 'int main() { int i=0; for (;;) { i=i+1; if (i==10) return i; } return 0; }'
+
+assert 35 'int main() { int a=3; int b=5; int n=0; if (a<b) n=n+1; if (a<=b) n=n+2; if (a>b) n=n+4; if (a>=b) n=n+8; if (a==b) n=n+16; if (a!=b) n=n+32; return n; }'
+assert 26 'int main() { int a=3; int b=5; int n=0; if (b-(a-1)<a) n=n+1; if (b-(a-1)<=a) n=n+2; if (b-(a-1)>a) n=n+4; if (b-(a-1)>=a) n=n+8; if (b-(a-1)==a) n=n+16; if (b-(a-1)!=a) n=n+32; return n; }'
+assert 55 'int main() { int s=0; int i; for (i=10; i>=0; i=i-1) s=s+i; return s; }'
+assert 10 'int main() { int s=0; int i; for (i=0; i+1<=5*2; i=i+1) s=s+1; return s; }'
+
+assert 48 'int main() { int a[10]; int i; for (i=0;i<10;i=i+1) a[i]=i*i; return a[9]-a[i-3]+a[a[2]]; }'
+assert 8 'int main() { char c[8]; int i; for (i=0;i<8;i=i+1) c[i]=i*40; return c[7]+c[i-2]; }'
+assert 35 'int main() { int x[3][4]; int i; int j; for (i=0;i<3;i=i+1) for (j=0;j<4;j=j+1) x[i][j]=i*10+j; return x[2][3]+x[1][i-1]; }'
+assert 20 'int g[5]; int main() { int i; for (i=0;i<5;i=i+1) g[i]=i+1; return g[4]*g[i-2]; }'
+assert 6 'int main() { int a[4]; a[ret3()]=ret5(); a[add(1,1)]=a[ret3()]+1; return a[2]; }'
+assert 11 'int main() { int a[4]; int *p=a+3; *p=7; p[-1]=2; return p[0]+*(p-1)+a[2]; }'
+
+# Multiplication and division by a constant are strength-reduced.
+# Compare them with idiv and imul, done by gcc, for dividends around 0
+# and near both ends of the range.
+for d in 1 2 3 4 5 6 7 8 9 10 11 12 13 16 25 64 100 125 641 1000 1024 65536 2147483647 \
+    -1 -2 -3 -5 -7 -8 -16 -100 -2147483647 2147483647*2147483647 \
+    1073741824*1073741824*4 -1073741824*1073741824*4 -1073741824*1073741824*8; do
+  assert 0 "int main() { int big=2147483647*2147483647*2+2147483647*4-2999; int bad=0; int x; for (x=-3000; x<=3000; x=x+1) { if (x/($d)!=div64(x,$d)) bad=bad+1; if ((x+big)/($d)!=div64(x+big,$d)) bad=bad+1; if ((x-big)/($d)!=div64(x-big,$d)) bad=bad+1; if (x*($d)!=mul64(x,$d)) bad=bad+1; if (($d)*(x-big)!=mul64(x-big,$d)) bad=bad+1; } return bad; }"
+done
+assert 1 'int g; int main() { g=0-5; return g<0; }'
+assert 7 'int g; int main() { int a[4]; int i; for (i=0;i<4;i=i+1) a[i]=i+4; i=ret3(); g=a[i]; return g; }'
+assert 11 'char c; int g; int main() { int x=ret3(); c=x+8; g=x<5; return c-g+1; }'
+assert 3 'int main() { int a[8]; int *p=a+1; int *q=a+4; return q-p; }'
+assert 7 'int main() { int a[8]; int *p=a+1; int *q=a+4; return p-q+10; }'
+
+assert 55 'int sq(int x) { return x*x; } int max(int a, int b) { if (a<b) return b; return a; } int main() { int s=0; int i; for (i=0;i<10;i=i+1) s=s+max(sq(i), 10); return s; }'
+assert 44 'int main() { return f(300); } int f(char c) { return c; }'
+assert 13 'int twice(int x) { return x+x; } int quad(int x) { return twice(twice(x)); } int main() { return 1+quad(3); }'
+assert 89 'int fib(int n) { if (n<=1) return 1; return fib(n-1)+fib(n-2); } int main() { return fib(10); }'
+assert 7 'int sgn(int x) { if (x<0) return 0-1; if (x==0) return 0; return 1; } int main() { return 5+sgn(0-7)*2+sgn(9)*4+sgn(0); }'
+assert 8 'int g; int inc() { g=g+1; return g; } int main() { g=0; int a=inc(); int b=inc(); int c=inc(); return a*b+c+g; }'
+assert 30 'int sum(int *a, int n) { int s=0; int i; for (i=0;i<n;i=i+1) s=s+a[i]; return s; } int main() { int x[4]; int i; for (i=0;i<4;i=i+1) x[i]=i*5; return sum(x, 4); }'
+assert 10 'int add3(int a, int b, int c) { return a+b+c; } int main() { return 2*add3(1, add3(1,1,1), ret3())-ret5()+1; }'
+assert 1 'int f(int a, int b) { return a+b*0; } int main() { return f(1); }'
+assert 9 'int g; int h() { g=9; return 1; } int f(int a) { return a; } int main() { g=0; f(2, h()); return g; }'
+
+assert 5 'int g; int main() { g=5; return g; g=7; ret3(); }'
+assert 8 'int g; int bump() { g=g+1; return g; } int main() { int x; int y; g=5; x=bump(); y=bump()+x; x=y; bump(); return g; }'
+assert 4 'int main() { int a=1; int b; int c; b=a+1; c=b+1; a+1; b*c; return a+c; }'
+assert 9 'int main() { int i=0; for (;;) { i=i+1; if (i==9) return i; } i=100; return i; }'
+assert 7 'int unused(int x) { return x/0; } int main() { if (1) return 7; return 3; }'
+assert 3 'int main() { return 3000000000*3/3000000000; }'
+assert 1 'int main() { return 4294967296*2>4294967296; }'
+assert 6 'int g; int set(int x) { g=x; return x; } int main() { int dead; dead=set(6); return g; }'
+assert 2 'int main() { int x=ret3(); if (x<0) { return 1; } else { return 2; } return 3; }'
+
+assert 32 'int main() { int a[4][4]; int n=3; int m=5; int s=0; int i; int j; for (i=0;i<4;i=i+1) for (j=0;j<4;j=j+1) { a[i][j]=i+j+n*m; s=s+a[i][j]; } return s; }'
+assert 30 'int main() { int a[3][5]; int i; int j; for (i=0;i<3;i=i+1) for (j=0;j<5;j=j+1) a[i][j]=i*j; int s=0; for (i=2;i>=0;i=i-1) for (j=0;j<5;j=j+1) s=s+a[i][j]; return s; }'
+assert 3 'int main() { int n=ret3(); int s=3; int i; for (i=0;i<0;i=i+1) s=s+n/(n-3); return s; }'
+assert 40 'int main() { int n=ret5(); int s=0; int i; for (i=0;i<8;i=i+1) { s=s+n*2-n; if (i==3) n=n+0; } return s; }'
+assert 54 'int main() { int n=2; int s=0; int i; for (i=0;i<6;i=i+1) { s=s+n*3; if (i==2) n=n+2; } return s; }'
+assert 15 'int main() { char a[6]; char *p; int i; for (i=0;i<6;i=i+1) a[i]=i; int s=0; for (p=a;p<a+6;p=p+1) s=s+*p; return s; }'
+assert 10 'int main() { int i=0; int s=0; while (i<5) { s=s+i; i=i+1; } return s; }'
+assert 6 'int main() { int x[3][3]; int i; int k=0; for (i=0;i<3;i=i+1) { x[i][i]=i+1; k=k+x[i][i]; } return k; }'
+
+assert 214 'int main() { int a[16]; int i; int s=0; for (i=0;i<16;i=i+1) a[i]=i; for (i=0;i<103;i=i+1) s=s+a[i/8]; for (i=10;i>0;i=i-3) s=s+i; for (i=0;i<50;i=i+1) { s=s+a[3]*i; if (i==2) s=s+1; } return s; }'
+assert 21 'int main() { int i; for (i=0;i<=20;i=i+3) {} return i; }'
+assert 16 'int main() { int i; int s=0; for (i=100;i>=3;i=i-7) s=s+1; return s+i; }'
+assert 5 'int main() { int i; int s=0; for (i=5;i<5;i=i+1) s=s+1; return s+i; }'
+assert 120 'int main() { int a[4][4]; int i; int j; int s=0; for (i=0;i<4;i=i+1) for (j=0;j<4;j=j+1) a[i][j]=i*4+j; for (i=0;i<16;i=i+1) s=s+a[i/4][i-i/4*4]; return s; }'
+assert 15 'int main() { int i; for (i=0;i<40;i=i+1) if (i*i>200) return i; return 0; }'
+assert 31 'int g; int f(int x) { g=g*3+x; return 0; } int main() { int i; g=0; for (i=0;i<7;i=i+1) f(i); return g-g/256*256; }'
+assert 100 'int main() { char a[100]; int i; int s=0; for (i=0;i<100;i=i+1) a[i]=1; for (i=99;i>=0;i=i-1) s=s+a[i]; return s; }'
+
+assert 172 'char x[100]; int main() { char a[100]; char b[100]; int i; int n=ret(); for (i=0;i<n;i=i+1) { a[i]=i; b[i]=2*i; } for (i=0;i<n;i=i+1) x[i]=a[i]+b[i]-a[i]; int s=0; for (i=0;i<n;i=i+1) s=s+x[i]; return s; } int ret() { return 100; }'
+assert 91 'int main() { int a[50]; int b[50]; int i; int n=40; for (i=0;i<50;i=i+1) { a[i]=i*3; b[i]=100-i; } for (i=1;i<=n;i=i+1) b[i]=a[i]+b[i]; int s=0; for (i=0;i<50;i=i+1) s=s+b[i]; return s-s/256*256; }'
+assert 32 'int main() { char a[40]; char b[40]; char c[40]; int i; for (i=0;i<40;i=i+1) { a[i]=i; b[i]=i*7; c[i]=i*5; } for (i=0;i<37;i=i+1) { a[i]=b[i]+c[i]; c[i]=a[i]-b[i]+a[i]; } int s=0; for (i=0;i<40;i=i+1) s=s+c[i]-a[i]/2; return s-s/256*256; }'
+assert 42 'int main() { int a[4]; int b[4]; int i; int n=3; for (i=0;i<4;i=i+1) { a[i]=1; b[i]=i; } for (i=0;i<n;i=i+1) a[i]=a[i]+b[i]+b[i]; return a[0]+a[1]*3+a[2]*5+a[3]*7; }'
+assert 162 'int main() { int x[12]; int z[12]; int i; int j; int s=0; for (i=0;i<12;i=i+1) { x[i]=i*7+1; z[i]=i*i; } for (i=0;i<20;i=i+3) for (j=1;j<=9;j=j+1) z[j]=x[j]+z[j]; for (i=0;i<12;i=i+1) s=s+z[i]*(i+1); return s-s/256*256; }'
+
+# Without tail calls, this recursion is a million frames deep and
+# overflows the stack.
+if [[ " $JCCFLAGS " != *" -fno-tail-calls "* ]]; then
+  assert 32 'int sum(int n, int acc) { if (n==0) return acc; return sum(n-1, acc+n); } int main() { return sum(1000000, 0) - sum(1000000, 0)/256*256; }'
+fi
+assert 40 'int rot(int a, int b, int c, int d, int e, int k) { if (k==0) return a+b*2+c*3+d*4+e*5; return rot(b, c, d, e, a, k-1); } int main() { return rot(1, 2, 3, 4, 5, 7); }'
+assert 2 'int even(int n) { if (n==0) return 1; return odd(n-1); } int odd(int n) { if (n==0) return 0; return even(n-1); } int main() { return even(50001)+odd(50001)*2; }'
+assert 7 'int f(int a, int b) { return sub(b, a); } int main() { return f(3, 10); }'
+assert 30 'int g(int a, int b, int c, int d, int e, int f) { return add6(f, e, d, c, b, a*10); } int main() { return g(1, 2, 3, 4, 5, 6); }'
+assert 6 'int fact(int n, int acc) { if (n<=1) return acc; int m=n-1; return fact(m, acc*n); } int main() { return fact(3, 1); }'
+assert 9 'int first(int *p) { return *p; } int main() { int a[2]; a[0]=9; a[1]=1; return first(a); }'
+assert 4 'int get(int *p) { return *p; } int main() { int x=4; return get(&x); }'
+
+assert 7 'int f(char *p) { return p[0]; } int main() { char c[3]; int x; int s=0; { char a[100]; a[0]=1; s=s+f(a); } { int b[10]; b[0]=2; s=s+b[0]; { char d[5]; d[0]=c[0]=2; s=s+f(d)+f(c); } } x=s; return x; }'
+assert 45 'int main() { int s=0; int i; for (i=0;i<10;i=i+1) { int a[4]; a[0]=i; { char b[9]; b[8]=a[0]; s=s+b[8]; } } return s; }'
+assert 12 'int main() { int a[3]; a[0]=5; { int b[3]; b[0]=3; b[1]=4; a[1]=b[0]+b[1]; } { int c[3]; c[0]=0; c[1]=0; } return a[0]+a[1]; }'
+assert 21 'int main() { char c[3]; int x[2]; char d[5]; c[0]=1; x[0]=2; x[1]=3; d[4]=4; c[2]=5; d[0]=6; return c[0]+x[0]+x[1]+d[4]+c[2]+d[0]; }'
+assert 9 'int g(int k) { int t[4]; t[0]=k; t[3]=k*2; return t[0]+t[3]; } int main() { int s=0; int i; for (i=0;i<3;i=i+1) { char z[16]; z[0]=i; s=s+g(z[0]); } { int w[3]; w[2]=s; s=w[2]; } return s; }'
+
+# Throughput: one server JVM compiles a large unit on every core at
+# once. Every copy must come out the same, within a time limit.
+for i in $(seq 5000); do
+  echo "int f$i(int x) { int a[4]; a[1]=x+$i; return a[1]*3-$i; }"
+done > tmp-big.c
+echo 'int main() { return f10(2)-f9(1); }' >> tmp-big.c
+java -cp bin jchibicc.Main -server tmp.sock &
+server=$!
+while [ ! -S tmp.sock ]; do sleep 0.1; done
+start=$SECONDS
+pids=()
+for i in $(seq $(nproc)); do
+  java -cp bin jchibicc.Main -client tmp.sock $JCCFLAGS -f tmp-big.c > tmp-big$i.s &
+  pids+=($!)
+done
+for pid in "${pids[@]}"; do
+  wait $pid || { kill $server; echo "throughput: compile failed"; exit 1; }
+done
+kill $server
+elapsed=$((SECONDS - start))
+for i in $(seq 2 $(nproc)); do
+  cmp -s tmp-big1.s tmp-big$i.s || { echo "throughput: outputs differ"; exit 1; }
+done
+gcc -static -o tmp tmp-big1.s tmp2.o
+./tmp
+actual="$?"
+if [ "$actual" != 5 ]; then
+  echo "tmp-big.c => 5 expected, but got $actual"
+  exit 1
+fi
+if [ $elapsed -gt 60 ]; then
+  echo "throughput: $(nproc) units took ${elapsed}s, more than 60s"
+  exit 1
+fi
+echo "throughput: $(nproc) units of $(wc -c < tmp-big.c) bytes in ${elapsed}s"
+
 echo OK
\ No newline at end of file